@@ -0,0 +1,59 @@
+package org.ipea.r5r;
+
+import java.util.List;
+
+/**
+ * A DepartureProfileResult holds the travel time by departure minute for every reachable origin-destination pair.
+ * Profiles are stored in a single flat array, with the profile of pair i in travelTimes[offsets[i]] to
+ * travelTimes[offsets[i] + timeWindowSize - 1]. Minutes without a trip within the maximum trip duration are -1.
+ */
+public class DepartureProfileResult {
+  public final String[] fromIds;
+  public final String[] toIds;
+  public final int[] offsets;
+  public final short[] travelTimes;
+
+  public final int timeWindowSize;
+  // departure time of each minute of the profiles, as HH:MM:SS
+  public final String[] departureTimes;
+  public final String stat;
+
+  public DepartureProfileResult(String[] fromIds, String[] toIds, short[] travelTimes,
+                                int timeWindowSize, String[] departureTimes, String stat) {
+    this.fromIds = fromIds;
+    this.toIds = toIds;
+    this.travelTimes = travelTimes;
+    this.timeWindowSize = timeWindowSize;
+    this.departureTimes = departureTimes;
+    this.stat = stat;
+
+    this.offsets = new int[fromIds.length];
+    for (int i = 0; i < offsets.length; i++) offsets[i] = i * timeWindowSize;
+  }
+
+  public int nPairs() {
+    return fromIds.length;
+  }
+
+  /**
+   * Concatenates the profiles of several results, e.g. one per origin, in the given order.
+   */
+  public static DepartureProfileResult merge(List<DepartureProfileResult> results,
+                                             int timeWindowSize, String[] departureTimes, String stat) {
+    int nPairs = results.stream().mapToInt(DepartureProfileResult::nPairs).sum();
+
+    String[] fromIds = new String[nPairs];
+    String[] toIds = new String[nPairs];
+    short[] travelTimes = new short[nPairs * timeWindowSize];
+
+    int pair = 0;
+    for (DepartureProfileResult result : results) {
+      System.arraycopy(result.fromIds, 0, fromIds, pair, result.nPairs());
+      System.arraycopy(result.toIds, 0, toIds, pair, result.nPairs());
+      System.arraycopy(result.travelTimes, 0, travelTimes, pair * timeWindowSize, result.travelTimes.length);
+      pair += result.nPairs();
+    }
+
+    return new DepartureProfileResult(fromIds, toIds, travelTimes, timeWindowSize, departureTimes, stat);
+  }
+}
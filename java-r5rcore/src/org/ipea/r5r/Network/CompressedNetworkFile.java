@@ -0,0 +1,305 @@
+package org.ipea.r5r.Network;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Container for a compressed network file. The serialized network is split in fixed size blocks that are deflated
+ * independently, followed by an index with the position and sizes of each block, so blocks can be compressed and
+ * decompressed in parallel while the network is serialized and deserialized as a single ordered stream, without an
+ * uncompressed copy on disk.
+ *
+ * Layout: MAGIC, block size (int), compressed blocks, index (offset, compressed size and uncompressed size of each
+ * block), index offset (long), number of blocks (int).
+ */
+public class CompressedNetworkFile {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CompressedNetworkFile.class);
+
+    public static final byte[] MAGIC = "R5RDEFL1".getBytes();
+
+    private static final int BLOCK_SIZE = 4 * 1024 * 1024;
+    private static final int TRAILER_SIZE = Long.BYTES + Integer.BYTES;
+    private static final int INDEX_ENTRY_SIZE = Long.BYTES + 2 * Integer.BYTES;
+
+    public static boolean isCompressed(File file) throws IOException {
+        try (FileInputStream stream = new FileInputStream(file)) {
+            byte[] magic = new byte[MAGIC.length];
+            return stream.read(magic) == MAGIC.length && Arrays.equals(MAGIC, magic);
+        }
+    }
+
+    /**
+     * @return a stream with the contents of the network file, decompressing it if needed
+     */
+    public static InputStream openStream(File file) throws IOException {
+        return isCompressed(file) ? new BlockInputStream(file) : new FileInputStream(file);
+    }
+
+    /**
+     * @return a stream writing a compressed network file, compressing blocks on a number of threads while the network
+     * is still being written. The file is only complete once the stream is closed.
+     */
+    public static OutputStream createStream(File file, int nThreads) throws IOException {
+        return new BlockOutputStream(file, nThreads);
+    }
+
+    /**
+     * @return the uncompressed size of the block as an int, followed by the deflated block
+     */
+    private static byte[] deflate(byte[] block) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(block);
+        deflater.finish();
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(block.length / 2 + Integer.BYTES);
+        compressed.write(block.length >>> 24);
+        compressed.write(block.length >>> 16);
+        compressed.write(block.length >>> 8);
+        compressed.write(block.length);
+
+        byte[] buffer = new byte[64 * 1024];
+        while (!deflater.finished()) {
+            int length = deflater.deflate(buffer);
+            compressed.write(buffer, 0, length);
+        }
+        deflater.end();
+
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Writes a compressed network file from an ordered stream, deflating full blocks in parallel while the writer
+     * fills the next ones. Blocks are written in order, with a bounded number in flight.
+     */
+    private static class BlockOutputStream extends OutputStream {
+
+        private final DataOutputStream out;
+        private final ExecutorService pool;
+        private final int nThreads;
+
+        private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+        private final ByteArrayOutputStream index = new ByteArrayOutputStream();
+        private final DataOutputStream indexOut = new DataOutputStream(index);
+        private long offset = MAGIC.length + Integer.BYTES;
+        private long uncompressedSize = 0;
+        private int nBlocks = 0;
+
+        private byte[] currentBlock = new byte[BLOCK_SIZE];
+        private int position = 0;
+        private boolean closed = false;
+
+        BlockOutputStream(File file, int nThreads) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.write(MAGIC);
+            out.writeInt(BLOCK_SIZE);
+
+            this.nThreads = nThreads;
+            pool = Executors.newFixedThreadPool(nThreads);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            currentBlock[position++] = (byte) b;
+            if (position == BLOCK_SIZE) submitBlock();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int length = Math.min(len, BLOCK_SIZE - position);
+                System.arraycopy(b, off, currentBlock, position, length);
+                position += length;
+                off += length;
+                len -= length;
+                if (position == BLOCK_SIZE) submitBlock();
+            }
+        }
+
+        private void submitBlock() throws IOException {
+            // the block is handed over to the pool, and a new one is filled in the meantime
+            byte[] block = position == BLOCK_SIZE ? currentBlock : Arrays.copyOf(currentBlock, position);
+            pending.add(pool.submit(() -> deflate(block)));
+            uncompressedSize += position;
+            currentBlock = new byte[BLOCK_SIZE];
+            position = 0;
+
+            while (pending.size() >= 2 * nThreads) writeNextBlock();
+        }
+
+        private void writeNextBlock() throws IOException {
+            byte[] compressed;
+            try {
+                compressed = pending.poll().get();
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IOException(e);
+            }
+            out.write(compressed, Integer.BYTES, compressed.length - Integer.BYTES);
+
+            indexOut.writeLong(offset);
+            indexOut.writeInt(compressed.length - Integer.BYTES);
+            indexOut.writeInt(ByteBuffer.wrap(compressed).getInt());
+            offset += compressed.length - Integer.BYTES;
+            nBlocks++;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+
+            try {
+                if (position > 0) submitBlock();
+                while (!pending.isEmpty()) writeNextBlock();
+
+                out.write(index.toByteArray());
+                out.writeLong(offset);
+                out.writeInt(nBlocks);
+
+                LOG.info("Compressed network from {} to {} bytes.", uncompressedSize, offset + index.size() + TRAILER_SIZE);
+            } finally {
+                pool.shutdownNow();
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Reads a compressed network file as an ordered stream, decompressing the next blocks in parallel ahead of the
+     * reader.
+     */
+    private static class BlockInputStream extends InputStream {
+
+        private final FileChannel channel;
+        private final ExecutorService pool;
+        private final int nThreads;
+
+        private final long[] offsets;
+        private final int[] compressedSizes;
+        private final int[] uncompressedSizes;
+
+        private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+        private int nextBlockToSubmit = 0;
+
+        private byte[] currentBlock = new byte[0];
+        private int position = 0;
+
+        BlockInputStream(File file) throws IOException {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+            ByteBuffer trailer = readFully(channel.size() - TRAILER_SIZE, TRAILER_SIZE);
+            long indexOffset = trailer.getLong();
+            int nBlocks = trailer.getInt();
+
+            offsets = new long[nBlocks];
+            compressedSizes = new int[nBlocks];
+            uncompressedSizes = new int[nBlocks];
+
+            ByteBuffer index = readFully(indexOffset, nBlocks * INDEX_ENTRY_SIZE);
+            for (int i = 0; i < nBlocks; i++) {
+                offsets[i] = index.getLong();
+                compressedSizes[i] = index.getInt();
+                uncompressedSizes[i] = index.getInt();
+            }
+
+            nThreads = Runtime.getRuntime().availableProcessors();
+            pool = Executors.newFixedThreadPool(nThreads);
+            submitBlocks();
+        }
+
+        private ByteBuffer readFully(long offset, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) == -1) {
+                    throw new EOFException("Truncated compressed network file.");
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        private void submitBlocks() {
+            while (nextBlockToSubmit < offsets.length && pending.size() < 2 * nThreads) {
+                int block = nextBlockToSubmit++;
+                pending.add(pool.submit(() -> inflate(block)));
+            }
+        }
+
+        private byte[] inflate(int block) throws IOException, DataFormatException {
+            ByteBuffer compressed = readFully(offsets[block], compressedSizes[block]);
+
+            Inflater inflater = new Inflater();
+            inflater.setInput(compressed.array());
+            byte[] uncompressed = new byte[uncompressedSizes[block]];
+            int length = 0;
+            try {
+                while (length < uncompressed.length) {
+                    // without more input (or after the end of the deflate stream) the loop would never fill the block
+                    if (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()) {
+                        throw new IOException(String.format("Truncated block %d in compressed network file, " +
+                                "%d of %d bytes.", block, length, uncompressed.length));
+                    }
+                    length += inflater.inflate(uncompressed, length, uncompressed.length - length);
+                }
+            } finally {
+                inflater.end();
+            }
+
+            return uncompressed;
+        }
+
+        // moves to the next block, returning false at the end of the stream
+        private boolean nextBlock() throws IOException {
+            while (position == currentBlock.length) {
+                if (pending.isEmpty()) return false;
+
+                try {
+                    currentBlock = pending.poll().get();
+                } catch (InterruptedException | ExecutionException e) {
+                    throw new IOException(e);
+                }
+                position = 0;
+                submitBlocks();
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextBlock()) return -1;
+            return currentBlock[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!nextBlock()) return -1;
+
+            int length = Math.min(len, currentBlock.length - position);
+            System.arraycopy(currentBlock, position, b, off, length);
+            position += length;
+            return length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            pool.shutdownNow();
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.ipea.r5r.Network;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Identifies the contents of an input file of the network (OSM, GTFS or elevation), so that a network can be
+ * reused until one of its inputs changes. Files are compared by size and modification time first; the checksum is
+ * only computed when the size matches but the modification time does not, e.g. after copying or re-downloading the
+ * same file.
+ */
+public class InputFingerprint {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    public final String fileName;
+    public final long size;
+    public final long lastModified;
+    public final String checksum;
+
+    private InputFingerprint(String fileName, long size, long lastModified, String checksum) {
+        this.fileName = fileName;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.checksum = checksum;
+    }
+
+    public static InputFingerprint of(File file) throws IOException {
+        return new InputFingerprint(file.getName(), file.length(), file.lastModified(), checksum(file));
+    }
+
+    public static InputFingerprint fromJson(JsonNode node) {
+        return new InputFingerprint(node.get("file_name").asText(), node.get("size").asLong(),
+                node.get("last_modified").asLong(), node.get("crc32c").asText());
+    }
+
+    public Map<String, Object> toJson() {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("file_name", fileName);
+        json.put("size", size);
+        json.put("last_modified", lastModified);
+        json.put("crc32c", checksum);
+        return json;
+    }
+
+    /**
+     * Whether the file still has the contents recorded in this fingerprint.
+     */
+    public boolean matches(File file) throws IOException {
+        if (!file.isFile() || !file.getName().equals(fileName) || file.length() != size) return false;
+        if (file.lastModified() == lastModified) return true;
+
+        return checksum(file).equals(checksum);
+    }
+
+    // CRC32C is hardware accelerated on current JVMs, and fast enough for multi-GB inputs
+    private static String checksum(File file) throws IOException {
+        CRC32C crc = new CRC32C();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        }
+
+        return Long.toHexString(crc.getValue());
+    }
+}
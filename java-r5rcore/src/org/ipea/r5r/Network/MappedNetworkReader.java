@@ -0,0 +1,163 @@
+package org.ipea.r5r.Network;
+
+import com.conveyal.r5.kryo.KryoNetworkSerializer;
+import com.conveyal.r5.transit.TransportNetwork;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.ByteBufferInput;
+import com.esotericsoftware.kryo.io.Input;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads network.dat like KryoNetworkSerializer.read, but from a memory-mapped file instead of a stream with a 4 kB
+ * buffer. The operating system pages the file in directly from its cache, so there is no copying through small
+ * reads, and a network that was recently built or loaded by another process is read from memory.
+ *
+ * R5 networks are made of heap objects and primitive collections, so the whole network is still deserialized when
+ * it is loaded, and the mapping is released as soon as it has been read, so that the file can be replaced (e.g. on
+ * Windows, where mapped files cannot be deleted). A single mapping is limited to 2 GB, so larger files are mapped and
+ * released one chunk at a time. Compressed networks (see CompressedNetworkFile) are read through a stream that
+ * decompresses blocks in parallel.
+ */
+public class MappedNetworkReader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedNetworkReader.class);
+
+    private static final int STREAM_BUFFER_SIZE = 16 * 1024 * 1024;
+    private static final long CHUNK_SIZE = 1L << 30;
+
+    public static TransportNetwork read(File file) throws IOException {
+        LOG.info("Reading transport network...");
+
+        if (CompressedNetworkFile.isCompressed(file)) {
+            try (InputStream stream = CompressedNetworkFile.openStream(file)) {
+                return read(new Input(stream, STREAM_BUFFER_SIZE));
+            }
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                try (InputStream stream = new MappedChunkInputStream(channel)) {
+                    return read(new Input(stream, STREAM_BUFFER_SIZE));
+                }
+            }
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            try {
+                return read(new ByteBufferInput(buffer));
+            } finally {
+                unmap(buffer);
+            }
+        }
+    }
+
+    /**
+     * Releases a mapping right away instead of when the buffer is garbage collected. Deserialized objects never refer
+     * to the buffer, so it is safe once the network has been read. There is no public API for this, so when the JDK
+     * does not allow it the mapping is left to the garbage collector.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Field theUnsafe = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+            unsafe.getClass().getMethod("invokeCleaner", ByteBuffer.class).invoke(unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.debug("Could not release memory-mapped network file.", e);
+        }
+    }
+
+    /**
+     * Reads a file through consecutive mappings of at most CHUNK_SIZE bytes, releasing each one before mapping the
+     * next.
+     */
+    private static class MappedChunkInputStream extends InputStream {
+
+        private final FileChannel channel;
+        private final long size;
+
+        private long chunkStart = 0;
+        private MappedByteBuffer chunk = null;
+
+        MappedChunkInputStream(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+        }
+
+        // maps the next chunk when the current one has been read, returning false at the end of the file
+        private boolean nextChunk() throws IOException {
+            if (chunk != null) {
+                if (chunk.hasRemaining()) return true;
+
+                chunkStart += chunk.capacity();
+                unmap(chunk);
+                chunk = null;
+            }
+            if (chunkStart >= size) return false;
+
+            chunk = channel.map(FileChannel.MapMode.READ_ONLY, chunkStart, Math.min(CHUNK_SIZE, size - chunkStart));
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk()) return -1;
+            return chunk.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!nextChunk()) return -1;
+
+            int length = Math.min(len, chunk.remaining());
+            chunk.get(b, off, length);
+            return length;
+        }
+
+        @Override
+        public void close() {
+            if (chunk != null) {
+                unmap(chunk);
+                chunk = null;
+            }
+        }
+    }
+
+    private static TransportNetwork read(Input input) {
+        Kryo kryo = NetworkChecker.makeKryo();
+
+        byte[] header = new byte[NetworkChecker.HEADER.length];
+        input.readBytes(header);
+        if (!Arrays.equals(NetworkChecker.HEADER, header)) {
+            throw new RuntimeException("Unrecognized file header. Is this an R5 Kryo network?");
+        }
+        String formatVersion = kryo.readObject(input, String.class);
+        String commit = kryo.readObject(input, String.class);
+        LOG.info("Loading network from file format version {}, written by R5 commit {}", formatVersion, commit);
+
+        if (!KryoNetworkSerializer.NETWORK_FORMAT_VERSION.equals(formatVersion)) {
+            throw new RuntimeException(String.format("File format version is %s, this R5 requires %s",
+                    formatVersion, KryoNetworkSerializer.NETWORK_FORMAT_VERSION));
+        }
+
+        TransportNetwork network = kryo.readObject(input, TransportNetwork.class);
+        input.close();
+        LOG.info("Done reading.");
+
+        network.rebuildTransientIndexes();
+        LOG.info("Done rebuilding transient indexes.");
+
+        return network;
+    }
+}
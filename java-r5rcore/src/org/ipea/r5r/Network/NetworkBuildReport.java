@@ -0,0 +1,155 @@
+package org.ipea.r5r.Network;
+
+import org.ipea.r5r.RDataFrame;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Wall time, CPU time and heap usage of each phase of a network build, and the number of entities in the network.
+ *
+ * CPU time is measured for the whole process, so it includes the worker threads of parallel phases, and a CPU to wall
+ * time ratio above one shows how well a phase uses them. Phases that run on a single thread next to others, such as
+ * loading one GTFS feed, are measured with that thread's CPU time instead. Heap deltas are the difference in used heap
+ * before and after a phase, without forcing garbage collection, so they are only indicative.
+ */
+public class NetworkBuildReport {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NetworkBuildReport.class);
+
+    private static final double NANOS_PER_SECOND = 1e9;
+    private static final double BYTES_PER_MB = 1024 * 1024;
+
+    private static class Phase {
+        final String name;
+        final long wallTimeNanos;
+        final long cpuTimeNanos;
+        final long heapDeltaBytes;
+
+        Phase(String name, long wallTimeNanos, long cpuTimeNanos, long heapDeltaBytes) {
+            this.name = name;
+            this.wallTimeNanos = wallTimeNanos;
+            this.cpuTimeNanos = cpuTimeNanos;
+            this.heapDeltaBytes = heapDeltaBytes;
+        }
+    }
+
+    private final List<Phase> phases = new ArrayList<>();
+    private final Map<String, Long> entityCounts = new LinkedHashMap<>();
+
+    private final com.sun.management.OperatingSystemMXBean osBean =
+            (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+    public void time(String phase, Runnable task) {
+        time(phase, () -> {
+            task.run();
+            return null;
+        });
+    }
+
+    public <T> T time(String phase, Supplier<T> task) {
+        return measure(phase, task, osBean::getProcessCpuTime);
+    }
+
+    /**
+     * Times a phase running on the current thread only, e.g. in parallel with other phases.
+     */
+    public <T> T timeOnThread(String phase, Supplier<T> task) {
+        return measure(phase, task, threadBean::getCurrentThreadCpuTime);
+    }
+
+    private <T> T measure(String phase, Supplier<T> task, Supplier<Long> cpuTime) {
+        long heapBefore = usedHeap();
+        long cpuBefore = cpuTime.get();
+        long wallBefore = System.nanoTime();
+
+        T result = task.get();
+
+        Phase measured = new Phase(phase, System.nanoTime() - wallBefore, cpuTime.get() - cpuBefore,
+                usedHeap() - heapBefore);
+        synchronized (phases) {
+            phases.add(measured);
+        }
+        LOG.info("Network build phase {} took {} s ({} s CPU).", phase,
+                measured.wallTimeNanos / NANOS_PER_SECOND, measured.cpuTimeNanos / NANOS_PER_SECOND);
+
+        return result;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public void count(String entity, long count) {
+        entityCounts.put(entity, count);
+    }
+
+    public RDataFrame getPhases() {
+        RDataFrame dataFrame = new RDataFrame();
+        dataFrame.addStringColumn("phase", "");
+        dataFrame.addDoubleColumn("wall_time", 0.0);
+        dataFrame.addDoubleColumn("cpu_time", 0.0);
+        dataFrame.addDoubleColumn("cpu_wall_ratio", 0.0);
+        dataFrame.addDoubleColumn("heap_delta_mb", 0.0);
+
+        synchronized (phases) {
+            for (Phase phase : phases) {
+                dataFrame.append();
+                dataFrame.set("phase", phase.name);
+                dataFrame.set("wall_time", phase.wallTimeNanos / NANOS_PER_SECOND);
+                dataFrame.set("cpu_time", phase.cpuTimeNanos / NANOS_PER_SECOND);
+                dataFrame.set("cpu_wall_ratio", cpuWallRatio(phase));
+                dataFrame.set("heap_delta_mb", phase.heapDeltaBytes / BYTES_PER_MB);
+            }
+        }
+
+        return dataFrame;
+    }
+
+    public RDataFrame getEntityCounts() {
+        RDataFrame dataFrame = new RDataFrame();
+        dataFrame.addStringColumn("entity", "");
+        dataFrame.addLongColumn("count", 0L);
+
+        entityCounts.forEach((entity, count) -> {
+            dataFrame.append();
+            dataFrame.set("entity", entity);
+            dataFrame.set("count", count);
+        });
+
+        return dataFrame;
+    }
+
+    private static double cpuWallRatio(Phase phase) {
+        return phase.wallTimeNanos > 0 ? (double) phase.cpuTimeNanos / phase.wallTimeNanos : 0.0;
+    }
+
+    public Map<String, Object> toJson() {
+        List<Map<String, Object>> phasesJson = new ArrayList<>();
+        synchronized (phases) {
+            for (Phase phase : phases) {
+                Map<String, Object> phaseJson = new LinkedHashMap<>();
+                phaseJson.put("phase", phase.name);
+                phaseJson.put("wall_time", phase.wallTimeNanos / NANOS_PER_SECOND);
+                phaseJson.put("cpu_time", phase.cpuTimeNanos / NANOS_PER_SECOND);
+                phaseJson.put("cpu_wall_ratio", cpuWallRatio(phase));
+                phaseJson.put("heap_delta_mb", phase.heapDeltaBytes / BYTES_PER_MB);
+                phasesJson.add(phaseJson);
+            }
+        }
+
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("phases", phasesJson);
+        json.put("entity_counts", entityCounts);
+        return json;
+    }
+}
@@ -1,12 +1,17 @@
 package org.ipea.r5r.Network;
 
 import com.conveyal.analysis.datasource.DataSourceException;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.Output;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.conveyal.gtfs.GTFSFeed;
 import com.conveyal.gtfs.error.GTFSError;
 import com.conveyal.gtfs.validator.PostLoadValidator;
 import com.conveyal.gtfs.validator.model.Priority;
 import com.conveyal.osmlib.OSM;
 import com.conveyal.r5.analyst.scenario.RasterCost;
+import com.conveyal.r5.common.R5Version;
 import com.conveyal.r5.kryo.KryoNetworkSerializer;
 import com.conveyal.r5.streets.StreetLayer;
 import com.conveyal.r5.transit.TransferFinder;
@@ -17,21 +22,32 @@ import com.conveyal.r5.analyst.cluster.TransportNetworkConfig.TransferConfig;
 import org.apache.commons.io.FilenameUtils;
 import org.ipea.r5r.R5RCore;
 import org.ipea.r5r.RDataFrame;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.zip.ZipFile;
 import java.nio.file.Files;
 import java.nio.file.Path;
 
+import static org.ipea.r5r.JsonUtil.OBJECT_MAPPER;
+
 public class NetworkBuilder {
 
+    private static final Logger LOG = LoggerFactory.getLogger(NetworkBuilder.class);
+
+    private static final String NETWORK_SETTINGS_FILE = "network_settings.json";
+    private static final String STREETS_FILE = "streets.dat";
+
     public boolean useNativeElevation = false;
     public String elevationCostFunction = "NONE";
 
@@ -46,19 +62,83 @@ public class NetworkBuilder {
 
     public boolean highPriorityErrors = false;
 
+    // maximum number of GTFS feeds loaded and validated at the same time, 0 for one per processor
+    public int gtfsLoadThreads = 0;
+
+    // threads used by the parallel stages of the network build, 0 for one per processor
+    public int buildThreads = 0;
+
+    // keep the street layer in streets.dat, and reuse it when only the GTFS feeds or elevation settings change
+    public boolean incrementalBuild = false;
+
+    // write network.dat as a compressed block container, see CompressedNetworkFile
+    public boolean compressNetwork = false;
+
+    // where OSM data is stored while the street layer is built: "disk" (MapDB file next to the PBF), "memory"
+    // (off-heap MapDB) or "auto", which uses memory when the PBF is small enough for the available memory
+    public String osmStorage = "auto";
+
+    // rough size of the OSM store relative to the PBF file, with intersection detection
+    private static final int OSM_STORE_SIZE_FACTOR = 10;
+
+    // optional polygon limiting the OSM and GTFS data included in the network, see StudyArea
+    public String studyArea = "";
+    public double studyAreaBufferMeters = 1000;
+
+    private StudyArea clippingArea = null;
+
+    // phase timings and entity counts of the last network build
+    public NetworkBuildReport buildReport = null;
+
+    private boolean reuseStreetLayer = false;
+    // fingerprint of the OSM file the street layer was built from, when it is saved to streets.dat
+    private InputFingerprint streetsFingerprint = null;
+
+    /**
+     * Sets a network build option by name, as passed from R.
+     */
+    public void setBuildOption(String name, String value) {
+        switch (name) {
+            case "incremental_build":
+                incrementalBuild = Boolean.parseBoolean(value);
+                break;
+            case "compress_network":
+                compressNetwork = Boolean.parseBoolean(value);
+                break;
+            case "osm_storage":
+                if (!value.equals("auto") && !value.equals("memory") && !value.equals("disk")) {
+                    throw new IllegalArgumentException("osm_storage must be one of 'auto', 'memory' or 'disk'.");
+                }
+                osmStorage = value;
+                break;
+            case "study_area":
+                studyArea = value;
+                break;
+            case "study_area_buffer":
+                studyAreaBufferMeters = Double.parseDouble(value);
+                break;
+            case "build_threads":
+                buildThreads = Integer.parseInt(value);
+                break;
+            case "gtfs_load_threads":
+                gtfsLoadThreads = Integer.parseInt(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown network build option: " + name);
+        }
+    }
+
     public TransportNetwork checkAndLoadR5Network(String dataFolder) throws Exception {
+        // the inputs are found once, and used both to check the existing network and to build a new one
+        List<File> inputFiles = scanDirectory(new File(dataFolder));
+
         File file = new File(dataFolder, "network.dat");
         if (!file.isFile()) {
             // network.dat file does not exist. create!
-            createR5Network(dataFolder);
-        } else {
-            // network.dat file exists
-            // check version
-            if (!NetworkChecker.checkR5NetworkVersion(dataFolder)) {
-                // incompatible versions. try to create a new one
-                // network could not be loaded, probably due to incompatible versions. create a new one
-                createR5Network(dataFolder);
-            }
+            createR5Network(dataFolder, inputFiles);
+        } else if (!isNetworkUpToDate(dataFolder, inputFiles)) {
+            // incompatible versions or changed inputs. create a new one
+            createR5Network(dataFolder, inputFiles);
         }
         // compatible versions, load network
         // if there were high priority errors, though, don't return network - don't even tempt someone to use it.
@@ -66,45 +146,184 @@ public class NetworkBuilder {
     }
 
     public TransportNetwork loadR5Network(String dataFolder) throws Exception {
-        return KryoNetworkSerializer.read(new File(dataFolder, "network.dat"));
+        File file = new File(dataFolder, "network.dat");
+        try {
+            return MappedNetworkReader.read(file);
+        } catch (KryoException e) {
+            if (CompressedNetworkFile.isCompressed(file)) throw e;
+            // serializer configuration does not match the one that wrote the file, use R5's own reader
+            LOG.warn("Could not read memory-mapped network, reading it with R5.", e);
+            return KryoNetworkSerializer.read(file);
+        }
+    }
+
+    /**
+     * Checks an existing network against the settings it was built with, so that it is only rebuilt when its format
+     * is outdated, or when the input files or the elevation, study area or compression settings have changed since it
+     * was built. Networks built by older versions of r5r don't record their inputs, and are only checked for format
+     * version.
+     */
+    private boolean isNetworkUpToDate(String dataFolder, List<File> inputFiles) throws IOException {
+        File settingsFile = new File(dataFolder, NETWORK_SETTINGS_FILE);
+
+        JsonNode settings = null;
+        if (settingsFile.isFile()) {
+            try {
+                settings = OBJECT_MAPPER.readTree(settingsFile);
+            } catch (IOException e) {
+                LOG.warn("Could not read {}, rebuilding network.", settingsFile);
+                return false;
+            }
+        }
+
+        if (settings == null || !settings.has("inputs")) {
+            return NetworkChecker.checkR5NetworkVersion(dataFolder);
+        }
+
+        String formatVersion = settings.path("r5_network_version").asText();
+        if (!KryoNetworkSerializer.NETWORK_FORMAT_VERSION.equals(formatVersion)) {
+            LOG.warn("Network file format version is {}, this R5 requires {}; rebuilding network.",
+                    formatVersion, KryoNetworkSerializer.NETWORK_FORMAT_VERSION);
+            return false;
+        }
+
+        if (!String.valueOf(useNativeElevation).equals(settings.path("use_elevation").asText()) ||
+                !elevationCostFunction.equals(settings.path("elevation_cost_function").asText())) {
+            LOG.info("Elevation settings have changed; rebuilding network.");
+            return false;
+        }
+
+        if (!getStudyAreaChecksum(dataFolder).equals(settings.path("study_area").asText())) {
+            LOG.info("Study area has changed; rebuilding network.");
+            return false;
+        }
+
+        // the reader detects compression by itself, so without this check the option would be silently ignored;
+        // networks written before the option existed are uncompressed
+        if (!String.valueOf(compressNetwork).equals(settings.path("compressed").asText("false"))) {
+            LOG.info("Network compression setting has changed; rebuilding network.");
+            return false;
+        }
+
+        Map<String, InputFingerprint> fingerprints = new HashMap<>();
+        for (JsonNode input : settings.get("inputs")) {
+            InputFingerprint fingerprint = InputFingerprint.fromJson(input);
+            fingerprints.put(fingerprint.fileName, fingerprint);
+        }
+
+        if (fingerprints.size() != inputFiles.size()) {
+            LOG.info("Input files have been added or removed; rebuilding network.");
+            return false;
+        }
+
+        for (File inputFile : inputFiles) {
+            InputFingerprint fingerprint = fingerprints.get(inputFile.getName());
+            if (fingerprint == null || !fingerprint.matches(inputFile)) {
+                LOG.info("Input file {} has changed; rebuilding network.", inputFile.getName());
+                return false;
+            }
+        }
+
+        return true;
     }
 
     public void createR5Network(String dataFolder) {
+        createR5Network(dataFolder, scanDirectory(new File(dataFolder)));
+    }
+
+    /**
+     * @param inputFiles the inputs found by scanDirectory, which also sets the OSM, GTFS and elevation file names
+     */
+    private void createR5Network(String dataFolder, List<File> inputFiles) {
         File dir = new File(dataFolder);
 
         cleanUpMapdb(dir);
 
-        loadDirectory(dir);
+        // fingerprints are taken before reading the inputs, so that files changed during the build trigger a rebuild
+        List<InputFingerprint> inputFingerprints = new ArrayList<>();
+        try {
+            for (File inputFile : inputFiles) {
+                inputFingerprints.add(InputFingerprint.of(inputFile));
+            }
+        } catch (IOException e) {
+            // re-throw as unchecked
+            throw new RuntimeException(e);
+        }
 
-        TransportNetwork tn = createNetwork();
+        buildReport = new NetworkBuildReport();
+        streetsFingerprint = null;
+        clippingArea = loadStudyArea(dataFolder);
+        reuseStreetLayer = incrementalBuild && canReuseStreetLayer(dataFolder);
 
-        Map<String, String> networkConfig = buildNetworkConfig();
+        loadInputs();
+
+        TransportNetwork tn = createNetwork(dataFolder);
+        countEntities(tn);
 
         try {
             // if there were high priority errors, network is unusable. Don't even serialize it as that might tempt someone
             // to use it.
             if (!highPriorityErrors) {
-                KryoNetworkSerializer.write(tn, new File(dataFolder, "network.dat"));
-                writeNetworkSettings(dataFolder, networkConfig);
+                buildReport.time("write_network", () -> {
+                    try {
+                        writeNetwork(tn, new File(dataFolder, "network.dat"));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                writeNetworkSettings(dataFolder, buildNetworkConfig(inputFingerprints));
             }
-        } catch (IOException e) {
+        } catch (IOException | UncheckedIOException e) {
             e.printStackTrace();
         }
     }
 
-    private void writeNetworkSettings(String dataFolder, Map<String, String> networkConfig) throws IOException {
-        String json = "{" + networkConfig.entrySet().stream()
-                .map(e -> "\""+ e.getKey() + "\":\"" + e.getValue() + "\"")
-                .collect(Collectors.joining(", "))+"}";
+    private void writeNetwork(TransportNetwork network, File file) throws IOException {
+        if (!compressNetwork) {
+            KryoNetworkSerializer.write(network, file);
+            return;
+        }
 
-        FileWriter fileWriter = new FileWriter(new File(dataFolder, "network_settings.json"));
-        PrintWriter printWriter = new PrintWriter(fileWriter);
-        printWriter.print(json);
-        printWriter.close();
+        // same layout as KryoNetworkSerializer.write, compressed while it is serialized
+        LOG.info("Writing compressed transport network using {} threads...", getBuildThreads());
+        try (Output output = new Output(CompressedNetworkFile.createStream(file, getBuildThreads()), 16 * 1024 * 1024)) {
+            Kryo kryo = NetworkChecker.makeKryo();
+            output.write(NetworkChecker.HEADER);
+            kryo.writeObject(output, KryoNetworkSerializer.NETWORK_FORMAT_VERSION);
+            kryo.writeObject(output, R5Version.commit);
+            kryo.writeObject(output, network);
+        } catch (IOException | RuntimeException e) {
+            // don't leave a partial network behind, its index would make it look complete
+            file.delete();
+            throw e;
+        }
+        LOG.info("Done writing.");
     }
 
-    private Map<String, String> buildNetworkConfig() {
-        Map<String, String> networkConfig = new LinkedHashMap<>();
+    // a study area file can be given relative to the data folder
+    private StudyArea loadStudyArea(String dataFolder) {
+        if (studyArea.equals("")) return null;
+
+        File studyAreaFile = new File(dataFolder, studyArea);
+        String value = studyAreaFile.isFile() ? studyAreaFile.getAbsolutePath() : studyArea;
+        return StudyArea.fromOption(value, studyAreaBufferMeters);
+    }
+
+    private String getStudyAreaChecksum(String dataFolder) {
+        StudyArea area = loadStudyArea(dataFolder);
+        return area == null ? "" : area.getChecksum();
+    }
+
+    private int getBuildThreads() {
+        return buildThreads > 0 ? buildThreads : Runtime.getRuntime().availableProcessors();
+    }
+
+    private void writeNetworkSettings(String dataFolder, Map<String, Object> networkConfig) throws IOException {
+        OBJECT_MAPPER.writerWithDefaultPrettyPrinter().writeValue(new File(dataFolder, NETWORK_SETTINGS_FILE), networkConfig);
+    }
+
+    private Map<String, Object> buildNetworkConfig(List<InputFingerprint> inputFingerprints) {
+        Map<String, Object> networkConfig = new LinkedHashMap<>();
 
         networkConfig.put("r5_version", R5RCore.R5_VERSION);
         networkConfig.put("r5_network_version", KryoNetworkSerializer.NETWORK_FORMAT_VERSION);
@@ -120,20 +339,106 @@ public class NetworkBuilder {
         networkConfig.put("use_elevation", String.valueOf(useNativeElevation));
         networkConfig.put("elevation_cost_function", elevationCostFunction);
         networkConfig.put("tiff_file_name", tiffFile);
+        networkConfig.put("compressed", String.valueOf(compressNetwork));
+        networkConfig.put("study_area", clippingArea == null ? "" : clippingArea.getChecksum());
+
+        networkConfig.put("build_report", buildReport.toJson());
+
+        networkConfig.put("inputs", inputFingerprints.stream()
+                .map(InputFingerprint::toJson)
+                .collect(Collectors.toList()));
+
+        if (streetsFingerprint != null) {
+            Map<String, Object> streetsConfig = new LinkedHashMap<>();
+            streetsConfig.put("r5_network_version", KryoNetworkSerializer.NETWORK_FORMAT_VERSION);
+            streetsConfig.put("study_area", clippingArea == null ? "" : clippingArea.getChecksum());
+            streetsConfig.put("input", streetsFingerprint.toJson());
+            networkConfig.put("streets", streetsConfig);
+        }
 
         return networkConfig;
     }
 
-    private TransportNetwork createNetwork() {
+    /**
+     * The street layer saved by a previous incremental build can be reused if it was built from the current OSM file,
+     * by the current network format.
+     */
+    private boolean canReuseStreetLayer(String dataFolder) {
+        File streetsFile = new File(dataFolder, STREETS_FILE);
+        File settingsFile = new File(dataFolder, NETWORK_SETTINGS_FILE);
+        if (!streetsFile.isFile() || !settingsFile.isFile()) return false;
+
+        try {
+            JsonNode streetsConfig = OBJECT_MAPPER.readTree(settingsFile).get("streets");
+            if (streetsConfig == null) return false;
+
+            if (!KryoNetworkSerializer.NETWORK_FORMAT_VERSION.equals(streetsConfig.path("r5_network_version").asText()) ||
+                    !getStudyAreaChecksum(dataFolder).equals(streetsConfig.path("study_area").asText())) {
+                return false;
+            }
+
+            InputFingerprint fingerprint = InputFingerprint.fromJson(streetsConfig.get("input"));
+            if (osmFilename.equals("") || !fingerprint.matches(new File(osmFilename))) return false;
+
+            LOG.info("OSM file has not changed, reusing street layer from {}.", streetsFile);
+            streetsFingerprint = fingerprint;
+            return true;
+        } catch (IOException e) {
+            LOG.warn("Could not check {}, rebuilding street layer.", streetsFile);
+            return false;
+        }
+    }
+
+    private StreetLayer readStreetLayer(String dataFolder) {
+        try {
+            return KryoNetworkSerializer.read(new File(dataFolder, STREETS_FILE)).streetLayer;
+        } catch (Exception e) {
+            // re-throw as unchecked
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Saves the street layer before stops are linked to it, wrapped in a network without transit.
+     */
+    private void writeStreetLayer(String dataFolder, StreetLayer streetLayer) {
+        TransportNetwork streetNetwork = new TransportNetwork();
+        streetNetwork.scenarioId = "r5r";
+        streetNetwork.streetLayer = streetLayer;
+        streetNetwork.transitLayer = new TransitLayer();
+        streetNetwork.transitLayer.parentNetwork = streetNetwork;
+
+        TransportNetwork parentNetwork = streetLayer.parentNetwork;
+        streetLayer.parentNetwork = streetNetwork;
+        try {
+            KryoNetworkSerializer.write(streetNetwork, new File(dataFolder, STREETS_FILE));
+            streetsFingerprint = InputFingerprint.of(new File(osmFilename));
+        } catch (IOException e) {
+            // the network can still be built, just not incrementally next time
+            LOG.warn("Could not save street layer to {}.", STREETS_FILE, e);
+        } finally {
+            streetLayer.parentNetwork = parentNetwork;
+        }
+    }
+
+    private TransportNetwork createNetwork(String dataFolder) {
         TransportNetwork network = new TransportNetwork();
 
         network.scenarioId = "r5r";
-        network.streetLayer = new StreetLayer();
-        network.streetLayer.loadFromOsm(osmFile);
-        osmFile.close();
+        if (reuseStreetLayer) {
+            // street indexes and edge lists are rebuilt when the layer is read
+            network.streetLayer = buildReport.time("read_streets", () -> readStreetLayer(dataFolder));
+            network.streetLayer.parentNetwork = network;
+        } else {
+            network.streetLayer = new StreetLayer();
+            buildReport.time("street_layer", () -> network.streetLayer.loadFromOsm(osmFile));
+            osmFile.close();
 
-        network.streetLayer.parentNetwork = network;
-        network.streetLayer.indexStreets();
+            network.streetLayer.parentNetwork = network;
+            buildReport.time("index_streets", () -> network.streetLayer.indexStreets());
+
+            if (incrementalBuild) buildReport.time("write_streets", () -> writeStreetLayer(dataFolder, network.streetLayer));
+        }
 
         network.transitLayer = new TransitLayer();
         // this replaces the old r5r TransitLayerWithShapes class; saving shapes now built in to r5.
@@ -146,92 +451,197 @@ public class NetworkBuilder {
         // (use only transfers specified in GTFS, almost never appropriate).
         GtfsTransferLoader transferLoader = new GtfsTransferLoader(network.transitLayer, TransferConfig.OSM_ONLY);
 
-        gtfsFeeds.forEach(gtfsFeed -> {
+        buildReport.time("transit_layer", () -> gtfsFeeds.forEach(gtfsFeed -> {
             network.transitLayer.loadFromGtfs(gtfsFeed, transferLoader);
             // Is there a reason we can't push this close call down into the loader method? Maybe exception handling?
             gtfsFeed.close();
-        });
+        }));
 
         transferLoader.logErrors();
 
         network.transitLayer.parentNetwork = network;
-        network.streetLayer.associateStops(network.transitLayer);
-        network.streetLayer.buildEdgeLists();
+        buildReport.time("associate_stops", () -> network.streetLayer.associateStops(network.transitLayer));
+        buildReport.time("build_edge_lists", () -> network.streetLayer.buildEdgeLists());
 
-        network.rebuildTransientIndexes();
+        buildReport.time("rebuild_transient_indexes", network::rebuildTransientIndexes);
 
-        TransferFinder transferFinder = new TransferFinder(network, transferLoader);
-        transferFinder.findTransfers();
-        transferFinder.findParkRideTransfer();
+        // pre-calculate transfers between transit stops
+        // This used to run twice, before and after building the distance tables (see
+        // https://github.com/conveyal/r5/issues/991). Transfers only depend on street distances, which neither
+        // elevation costs nor distance tables change, so it runs once, as in R5's TransportNetworkCache.
+        ForkJoinPool buildPool = new ForkJoinPool(getBuildThreads());
+        try {
+            TransferFinder transferFinder = new TransferFinder(network, transferLoader);
+            buildReport.time("transfers", () -> transferFinder.findTransfers());
+            buildReport.time("park_ride_transfers", () -> transferFinder.findParkRideTransfer());
 
-        // apply elevation costs if a tiff file is available
-        try
-        {
-            if (useNativeElevation) {
-                if (!tiffFile.equals("")) {
-                    RasterCost elevationRaster = new RasterCost();
-                    elevationRaster.dataSourceId = FilenameUtils.removeExtension(tiffFile);
-                    elevationRaster.costFunction = RasterCost.CostFunction.valueOf(elevationCostFunction);
+            // apply elevation costs if a tiff file is available
+            if (useNativeElevation && !tiffFile.equals("")) {
+                buildReport.time("elevation", () -> applyElevationCosts(network));
+            }
 
-                    elevationRaster.resolve(network);
-                    elevationRaster.apply(network);
+            network.scenarioId = "r5r";
+
+            // Networks created in TransportNetworkCache are going to be used for analysis work. Pre-compute distance
+            // tables from stops to street vertices, then pre-build a linked grid point set for the whole region. These
+            // linkages should be serialized along with the network, which avoids building them when an analysis worker
+            // starts. The linkage we create here will never be used directly, but serves as a basis for scenario
+            // linkages, making analysis much faster to start up.
+            // The cpu_wall_ratio of this phase in the build report is the speedup over building them sequentially.
+            buildReport.time("distance_tables", () ->
+                    new ParallelDistanceTableBuilder(network.transitLayer).buildDistanceTables(buildPool));
+        } finally {
+            buildPool.shutdown();
+        }
 
-                }
-            }
+        return network;
+    }
+
+    private void applyElevationCosts(TransportNetwork network) {
+        try {
+            RasterCost elevationRaster = new RasterCost();
+            elevationRaster.dataSourceId = FilenameUtils.removeExtension(tiffFile);
+            elevationRaster.costFunction = RasterCost.CostFunction.valueOf(elevationCostFunction);
+
+            elevationRaster.resolve(network);
+            elevationRaster.apply(network);
         } catch (DataSourceException e) {
             e.printStackTrace();
             throw new RuntimeException(e);
         }
+    }
 
-        network.scenarioId = "r5r";
-
-        // Networks created in TransportNetworkCache are going to be used for analysis work. Pre-compute distance tables
-        // from stops to street vertices, then pre-build a linked grid point set for the whole region. These linkages
-        // should be serialized along with the network, which avoids building them when an analysis worker starts.
-        // The linkage we create here will never be used directly, but serves as a basis for scenario linkages, making
-        // analysis much faster to start up.
-        network.transitLayer.buildDistanceTables(null);
-
-        // pre-calculate transfers between transit stops
-        // TODO mwbc: why is this happening again? It does not happen twice in the R5
-        // TransportNetworkCache#buildNetworkFromConfig. I don't want to remove it though due to
-        // https://github.com/conveyal/r5/issues/991. Maybe we should just move the entire transfer
-        // finding process here?
-        new TransferFinder(network, transferLoader).findTransfers();
-
-        return network;
+    private void countEntities(TransportNetwork network) {
+        buildReport.count("street_vertices", network.streetLayer.getVertexCount());
+        buildReport.count("street_edges", network.streetLayer.edgeStore.nEdges());
+        buildReport.count("stops", network.transitLayer.getStopCount());
+        buildReport.count("routes", network.transitLayer.routes.size());
+        buildReport.count("patterns", network.transitLayer.tripPatterns.size());
+        buildReport.count("trips", network.transitLayer.tripPatterns.stream()
+                .mapToLong(pattern -> pattern.tripSchedules.size())
+                .sum());
+        buildReport.count("transfers", network.transitLayer.transfersForStop.stream()
+                .mapToLong(transfers -> transfers.size() / 2)
+                .sum());
+        buildReport.count("distance_tables", network.transitLayer.stopToVertexDistanceTables.stream()
+                .filter(Objects::nonNull)
+                .count());
     }
 
-    public void loadDirectory(File directory) {
+    /**
+     * Finds the network inputs in the directory: the OSM file, the GTFS feeds and the elevation raster.
+     * @return the input files found
+     */
+    private List<File> scanDirectory(File directory) {
         osmFilename = "";
         tiffFile = "";
         gtfsFiles.clear();
 
+        List<File> inputFiles = new ArrayList<>();
         for (File file : Objects.requireNonNull(directory.listFiles())) {
             String name = file.getName();
 
-            if (name.endsWith(".pbf")) {
-                osmFilename = file.getAbsolutePath();
+            if (name.endsWith(".pbf")) osmFilename = file.getAbsolutePath();
+            if (name.endsWith(".zip")) gtfsFiles.add(file.getAbsolutePath());
+            if (name.endsWith(".tif") | name.endsWith(".tiff")) tiffFile = file.getAbsolutePath();
+
+            if (name.endsWith(".pbf") | name.endsWith(".zip") | name.endsWith(".tif") | name.endsWith(".tiff")) {
+                inputFiles.add(file);
+            }
+        }
+
+        return inputFiles;
+    }
+
+    public void loadDirectory(File directory) {
+        // loading is timed like the other build phases, see createR5Network
+        buildReport = new NetworkBuildReport();
+        scanDirectory(directory);
+        loadInputs();
+    }
+
+    /**
+     * Loads the OSM and GTFS files found by the last call to scanDirectory.
+     */
+    private void loadInputs() {
+        // GTFS feeds are loaded and validated in the background while OSM data is read
+        ForkJoinPool gtfsPool = new ForkJoinPool(getGtfsLoadThreads());
+        List<ForkJoinTask<LoadedFeed>> loadingFeeds = gtfsFiles.stream()
+                .map(feedFile -> gtfsPool.submit(() ->
+                        buildReport.timeOnThread("gtfs_load:" + new File(feedFile).getName(), () -> loadFeed(feedFile))))
+                .collect(Collectors.toList());
 
+        try {
+            if (!osmFilename.equals("") && !reuseStreetLayer) {
                 // Load OSM data into MapDB to pass into network builder.
-                osmFile = new OSM(osmFilename + ".mapdb");
+                osmFile = new OSM(useMemoryOsmStorage() ? "__MEMORY__" : osmFilename + ".mapdb");
                 osmFile.intersectionDetection = true;
-                osmFile.readFromFile(osmFilename);
+                // timed on this thread only, as GTFS feeds are loading on other threads at the same time
+                buildReport.timeOnThread("osm_load", () -> {
+                    if (clippingArea == null) {
+                        osmFile.readFromFile(osmFilename);
+                    } else {
+                        new StudyAreaOsmFilter(osmFile, clippingArea).readFromFile(osmFilename);
+                    }
+                    return null;
+                });
             }
-            if (name.endsWith(".zip")) gtfsFiles.add(file.getAbsolutePath());
-            if (name.endsWith(".tif") | name.endsWith(".tiff")) tiffFile = file.getAbsolutePath();
+
+            initializeGtfsErrors();
+
+            // errors are added in the order of the feed files, regardless of which feed finished loading first
+            List<File> feedDbFiles = new ArrayList<>();
+            for (ForkJoinTask<LoadedFeed> loadingFeed : loadingFeeds) {
+                LoadedFeed loadedFeed = loadingFeed.join();
+                parseGtfsErrors(loadedFeed.errors);
+                feedDbFiles.add(loadedFeed.dbFile);
+            }
+
+            // Supply feeds with a stream, so they do not sit open in memory while other feeds are being processed.
+            gtfsFeeds = feedDbFiles.stream().map(GTFSFeed::reopenReadOnly);
+        } finally {
+            gtfsPool.shutdown();
         }
+    }
+
+    /**
+     * Off-heap MapDB storage avoids writing and reading the OSM data through a temporary file. Direct memory is
+     * limited to the maximum heap size by default, so in auto mode it is only used when the estimated store fits in
+     * half of that, and in the free physical memory.
+     */
+    private boolean useMemoryOsmStorage() {
+        if (osmStorage.equals("memory")) return true;
+        if (osmStorage.equals("disk")) return false;
+
+        long estimatedSize = new File(osmFilename).length() * OSM_STORE_SIZE_FACTOR;
+        long freePhysicalMemory = ((com.sun.management.OperatingSystemMXBean)
+                ManagementFactory.getOperatingSystemMXBean()).getFreeMemorySize();
+        boolean fits = estimatedSize < Runtime.getRuntime().maxMemory() / 2 && estimatedSize < freePhysicalMemory;
+
+        LOG.info("Storing OSM data {} (estimated {} MB).", fits ? "in memory" : "on disk", estimatedSize / 1024 / 1024);
+        return fits;
+    }
 
-        initializeGtfsErrors();
+    private int getGtfsLoadThreads() {
+        int threads = gtfsLoadThreads > 0 ? gtfsLoadThreads : Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(threads, gtfsFiles.size()));
+    }
+
+    // a GTFS feed stored in a MapDB file, closed, with the errors found while loading and validating it
+    private static class LoadedFeed {
+        final File dbFile;
+        final List<GTFSError> errors;
 
-        // Supply feeds with a stream, so they do not sit open in memory while other feeds are being processed.
-        gtfsFeeds = gtfsFiles.stream().map(this::readFeed);
+        LoadedFeed(File dbFile, List<GTFSError> errors) {
+            this.dbFile = dbFile;
+            this.errors = errors;
+        }
     }
 
-    // read a feed and store errors
+    // load a feed and keep its errors
     // We can't just use the R5 readOnlyTempFileFromGtfs, because then the errors get lost before
     // we have access to the object.
-    private GTFSFeed readFeed (String feedFile) {
+    private LoadedFeed loadFeed(String feedFile) {
         try {
             // we use a directory to make sure that all sidecar files get deleted on exit
             File tempDir = Files.createTempDirectory("gtfs").toFile();
@@ -244,8 +654,12 @@ public class NetworkBuilder {
             // add additional errors
             new PostLoadValidator(feed).validate();
 
-            // parse errors
-            parseGtfsErrors(feed);
+            // copy errors, re-opening the feed read only loses them (see the example in R5 BundleController.java)
+            List<GTFSError> errors = new ArrayList<>(feed.errors);
+
+            // clipped after validation, so that removed trips don't show up as dangling references
+            // feeds are loaded in parallel, and each one needs its own prepared geometry
+            if (clippingArea != null) StudyAreaGtfsFilter.filter(feed, clippingArea.copy());
 
             feed.close();
 
@@ -255,8 +669,7 @@ public class NetworkBuilder {
             dbFile.deleteOnExit();
             dbpFile.deleteOnExit();
 
-            // re-open read only (this loses the errors, see the example in R5 BundleController.java)
-            return GTFSFeed.reopenReadOnly(dbFile);
+            return new LoadedFeed(dbFile, errors);
         } catch (Exception e) {
             // re-throw as unchecked
             throw new RuntimeException(e);
@@ -274,8 +687,8 @@ public class NetworkBuilder {
         gtfsErrors.addStringColumn("priority", "");
     }
 
-    private void parseGtfsErrors(GTFSFeed feed) {
-        for (GTFSError error : feed.errors) {
+    private void parseGtfsErrors(List<GTFSError> errors) {
+        for (GTFSError error : errors) {
             gtfsErrors.append();
             gtfsErrors.set("file", error.file);
             gtfsErrors.set("line", (int) error.line);
@@ -14,8 +14,7 @@ import gnu.trove.map.hash.TIntIntHashMap;
 import org.objenesis.strategy.SerializingInstantiatorStrategy;
 import org.slf4j.LoggerFactory;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.BitSet;
 
@@ -34,11 +33,11 @@ public class NetworkChecker {
 
     private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(NetworkChecker.class);
 
-    public static boolean checkR5NetworkVersion(String dataFolder) throws FileNotFoundException {
+    public static boolean checkR5NetworkVersion(String dataFolder) throws IOException {
         LOG.info("Reading transport network...");
 
         File file = new File(dataFolder, "network.dat");
-        Input input = new Input(new FileInputStream(file));
+        Input input = new Input(CompressedNetworkFile.openStream(file));
         Kryo kryo = makeKryo();
         byte[] header = new byte[HEADER.length];
         input.read(header, 0, header.length);
@@ -65,7 +64,7 @@ public class NetworkChecker {
      * Because these networks are so big though, pre-registration should provide very little savings.
      * Registration is more important for small network messages.
      */
-    private static Kryo makeKryo () {
+    static Kryo makeKryo () {
         Kryo kryo;
         if (COUNT_CLASS_INSTANCES) {
             kryo = new Kryo(new InstanceCountingClassResolver(), null);
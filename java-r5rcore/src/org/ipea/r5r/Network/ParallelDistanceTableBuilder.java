@@ -0,0 +1,60 @@
+package org.ipea.r5r.Network;
+
+import com.conveyal.r5.transit.TransitLayer;
+import gnu.trove.map.TIntIntMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Builds the distance tables from transit stops to street vertices for the whole network, like
+ * TransitLayer.buildDistanceTables(null), but on the network build thread pool instead of the common pool shared
+ * with everything else running in the JVM.
+ *
+ * Each stop's table comes from its own street search (TransitLayer.buildOneDistanceTable), run on a single thread
+ * and stored by stop index, so the tables are the same regardless of the number of threads.
+ */
+public class ParallelDistanceTableBuilder {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelDistanceTableBuilder.class);
+
+    private final TransitLayer transitLayer;
+
+    public ParallelDistanceTableBuilder(TransitLayer transitLayer) {
+        this.transitLayer = transitLayer;
+    }
+
+    public void buildDistanceTables(ForkJoinPool pool) {
+        int nStops = transitLayer.getStopCount();
+        LOG.info("Finding distances from {} transit stops to street vertices using {} threads...",
+                nStops, pool.getParallelism());
+
+        TIntIntMap[] distanceTables = new TIntIntMap[nStops];
+        try {
+            pool.submit(() -> IntStream.range(0, nStops)
+                    .parallel()
+                    .forEach(stop -> distanceTables[stop] = buildDistanceTable(stop)))
+                    .get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+
+        transitLayer.stopToVertexDistanceTables = new ArrayList<>(Arrays.asList(distanceTables));
+
+        long nTables = Arrays.stream(distanceTables).filter(Objects::nonNull).count();
+        LOG.info("Built {} distance tables.", nTables);
+    }
+
+    private TIntIntMap buildDistanceTable(int stop) {
+        // stop not linked to the street network, no distance table
+        if (transitLayer.streetVertexForStop.get(stop) == -1) return null;
+
+        return transitLayer.buildOneDistanceTable(stop);
+    }
+}
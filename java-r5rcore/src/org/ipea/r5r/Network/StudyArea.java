@@ -0,0 +1,90 @@
+package org.ipea.r5r.Network;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKTReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.CRC32C;
+
+/**
+ * Polygon around the area of interest of a network, used to leave out OSM and GTFS data far from it. The polygon is
+ * given in WKT with WGS84 coordinates, and is buffered so that trips leaving the area briefly are kept.
+ *
+ * Prepared geometries build their index lazily and are not thread-safe, so contains() must only be called from one
+ * thread at a time; code filtering in parallel gives each task its own copy().
+ */
+public class StudyArea {
+
+    private static final double METERS_PER_DEGREE = 111_320;
+
+    private final String wkt;
+    private final double bufferMeters;
+
+    private final GeometryFactory geometryFactory = new GeometryFactory();
+    private final Geometry bufferedPolygon;
+    private final PreparedGeometry area;
+    private final Envelope envelope;
+
+    private StudyArea(String wkt, double bufferMeters) throws ParseException {
+        this(wkt, bufferMeters, buffer(new WKTReader().read(wkt), bufferMeters));
+    }
+
+    private StudyArea(String wkt, double bufferMeters, Geometry bufferedPolygon) {
+        this.wkt = wkt;
+        this.bufferMeters = bufferMeters;
+        this.bufferedPolygon = bufferedPolygon;
+
+        this.area = PreparedGeometryFactory.prepare(bufferedPolygon);
+        this.envelope = bufferedPolygon.getEnvelopeInternal();
+    }
+
+    private static Geometry buffer(Geometry polygon, double bufferMeters) {
+        // degrees of longitude are shorter than degrees of latitude, so the buffer is converted at the polygon's
+        // latitude, making it at least bufferMeters in every direction
+        double latitude = polygon.getCentroid().getY();
+        double bufferDegrees = bufferMeters / (METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude)));
+        return polygon.buffer(bufferDegrees);
+    }
+
+    /**
+     * @return the same study area with its own prepared geometry, for use on another thread
+     */
+    public StudyArea copy() {
+        return new StudyArea(wkt, bufferMeters, bufferedPolygon.copy());
+    }
+
+    /**
+     * @param value path to a file containing the WKT polygon, or the WKT polygon itself
+     */
+    public static StudyArea fromOption(String value, double bufferMeters) {
+        try {
+            File file = new File(value);
+            String wkt = file.isFile() ? new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8) : value;
+            return new StudyArea(wkt.trim(), bufferMeters);
+        } catch (IOException | ParseException e) {
+            throw new IllegalArgumentException("Invalid study area, expected a WKT polygon or a file containing one.", e);
+        }
+    }
+
+    public boolean contains(double lat, double lon) {
+        return envelope.contains(lon, lat) && area.contains(geometryFactory.createPoint(new Coordinate(lon, lat)));
+    }
+
+    /**
+     * Identifies the study area and buffer in the network settings, so that the network is rebuilt when they change.
+     */
+    public String getChecksum() {
+        CRC32C crc = new CRC32C();
+        crc.update((wkt + "|" + bufferMeters).getBytes(StandardCharsets.UTF_8));
+        return Long.toHexString(crc.getValue());
+    }
+}
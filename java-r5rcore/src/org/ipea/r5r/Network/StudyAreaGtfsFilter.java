@@ -0,0 +1,59 @@
+package org.ipea.r5r.Network;
+
+import com.conveyal.gtfs.GTFSFeed;
+import com.conveyal.gtfs.model.Stop;
+import com.conveyal.gtfs.model.StopTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Removes the trips of a GTFS feed that do not stop in the study area, and the stops that are outside it and no
+ * longer served. Trips that stop in the area are kept whole, so travel times along them are unchanged. Stations and
+ * entrances are kept, as kept stops may refer to them.
+ */
+public class StudyAreaGtfsFilter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StudyAreaGtfsFilter.class);
+
+    public static void filter(GTFSFeed feed, StudyArea studyArea) {
+        Set<String> stopsInside = new HashSet<>();
+        for (Stop stop : feed.stops.values()) {
+            if (studyArea.contains(stop.stop_lat, stop.stop_lon)) stopsInside.add(stop.stop_id);
+        }
+
+        Set<String> servedStops = new HashSet<>();
+        List<String> tripsToRemove = new ArrayList<>();
+        for (String tripId : feed.trips.keySet()) {
+            List<String> tripStops = new ArrayList<>();
+            boolean stopsInArea = false;
+            for (StopTime stopTime : feed.getOrderedStopTimesForTrip(tripId)) {
+                tripStops.add(stopTime.stop_id);
+                stopsInArea |= stopsInside.contains(stopTime.stop_id);
+            }
+
+            if (stopsInArea) {
+                servedStops.addAll(tripStops);
+            } else {
+                tripsToRemove.add(tripId);
+            }
+        }
+
+        List<String> stopsToRemove = new ArrayList<>();
+        for (Stop stop : feed.stops.values()) {
+            if (stop.location_type == 0 && !stopsInside.contains(stop.stop_id) && !servedStops.contains(stop.stop_id)) {
+                stopsToRemove.add(stop.stop_id);
+            }
+        }
+
+        // stop times of removed trips are left in place, trips are loaded from the trips table
+        tripsToRemove.forEach(feed.trips::remove);
+        stopsToRemove.forEach(feed.stops::remove);
+
+        LOG.info("Removed {} trips and {} stops outside the study area.", tripsToRemove.size(), stopsToRemove.size());
+    }
+}
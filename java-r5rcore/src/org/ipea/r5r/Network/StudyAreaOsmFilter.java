@@ -0,0 +1,124 @@
+package org.ipea.r5r.Network;
+
+import com.conveyal.osmlib.Node;
+import com.conveyal.osmlib.OSM;
+import com.conveyal.osmlib.OSMEntity;
+import com.conveyal.osmlib.OSMEntitySink;
+import com.conveyal.osmlib.OSMEntitySource;
+import com.conveyal.osmlib.Relation;
+import com.conveyal.osmlib.Way;
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * Reads an OSM file into an OSM store, leaving out ways without any node inside the study area, and relations without
+ * any member inside it or among the kept ways. The file is read twice: the first pass only collects the ids of the
+ * nodes inside the area and of the ways to keep, with the nodes they refer to, and the second pass stores the kept
+ * entities. Ways crossing the edge of the study area keep their nodes outside it, while other nodes outside it, such
+ * as bike share stations, never reach the store.
+ */
+public class StudyAreaOsmFilter implements OSMEntitySink {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StudyAreaOsmFilter.class);
+
+    private final OSM osm;
+    private final StudyArea studyArea;
+
+    private final TLongSet nodesInside = new TLongHashSet();
+    private final TLongSet nodesOfKeptWays = new TLongHashSet();
+    private final TLongSet keptWays = new TLongHashSet();
+
+    // true while collecting ids, false while storing the kept entities
+    private boolean firstPass;
+
+    private long nNodesRemoved = 0;
+    private long nWaysRemoved = 0;
+    private long nRelationsRemoved = 0;
+
+    public StudyAreaOsmFilter(OSM osm, StudyArea studyArea) {
+        this.osm = osm;
+        this.studyArea = studyArea;
+    }
+
+    public void readFromFile(String osmFilename) {
+        try {
+            LOG.info("Finding OSM entities of file '{}' inside the study area.", osmFilename);
+            firstPass = true;
+            OSMEntitySource.forFile(osmFilename).copyTo(this);
+
+            LOG.info("Reading OSM from file '{}', clipped to the study area.", osmFilename);
+            firstPass = false;
+            OSMEntitySource.forFile(osmFilename).copyTo(this);
+        } catch (Exception e) {
+            throw new RuntimeException("Error occurred while parsing OSM file " + osmFilename, e);
+        }
+
+        LOG.info("Removed {} nodes, {} ways and {} relations outside the study area.",
+                nNodesRemoved, nWaysRemoved, nRelationsRemoved);
+    }
+
+    @Override
+    public void writeBegin() throws IOException {
+        if (!firstPass) osm.writeBegin();
+    }
+
+    @Override
+    public void setReplicationTimestamp(long secondsSinceEpoch) {
+        if (!firstPass) osm.setReplicationTimestamp(secondsSinceEpoch);
+    }
+
+    @Override
+    public void writeNode(long id, Node node) throws IOException {
+        if (firstPass) {
+            if (studyArea.contains(node.getLat(), node.getLon())) nodesInside.add(id);
+        } else if (nodesInside.contains(id) || nodesOfKeptWays.contains(id)) {
+            osm.writeNode(id, node);
+        } else {
+            nNodesRemoved++;
+        }
+    }
+
+    @Override
+    public void writeWay(long id, Way way) throws IOException {
+        if (!firstPass) {
+            if (keptWays.contains(id)) {
+                osm.writeWay(id, way);
+            } else {
+                nWaysRemoved++;
+            }
+            return;
+        }
+
+        for (long node : way.nodes) {
+            if (nodesInside.contains(node)) {
+                nodesOfKeptWays.addAll(way.nodes);
+                keptWays.add(id);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void writeRelation(long id, Relation relation) throws IOException {
+        if (firstPass) return;
+
+        for (Relation.Member member : relation.members) {
+            boolean kept = member.type == OSMEntity.Type.WAY ? keptWays.contains(member.id) :
+                    member.type == OSMEntity.Type.NODE && nodesInside.contains(member.id);
+            if (kept) {
+                osm.writeRelation(id, relation);
+                return;
+            }
+        }
+        nRelationsRemoved++;
+    }
+
+    @Override
+    public void writeEnd() throws IOException {
+        if (!firstPass) osm.writeEnd();
+    }
+}
@@ -0,0 +1,112 @@
+package org.ipea.r5r.Process;
+
+import com.conveyal.r5.analyst.decay.DecayFunction;
+
+/**
+ * Accumulates accessibility for several opportunity layers, percentiles, decay functions and cutoffs from the
+ * travel times to each destination, in a single pass over the reached destinations. The decay weight of each
+ * destination is computed once per decay function and cutoff, and then applied to every opportunity layer.
+ *
+ * Results are stored in a flat array, indexed by opportunity, percentile, decay function and cutoff (in this order,
+ * cutoffs varying fastest). See index().
+ */
+public class AccessibilityAccumulator {
+
+    private final DecayFunction[] decayFunctions;
+    private final int[] cutoffsSeconds;
+    private final double[][] opportunities;
+    private final int nPercentiles;
+
+    private final int nDecayFunctions;
+    private final int nCutoffs;
+
+    public AccessibilityAccumulator(DecayFunction[] decayFunctions, int[] cutoffsMinutes, double[][] opportunities, int nPercentiles) {
+        this.decayFunctions = decayFunctions;
+        this.opportunities = opportunities;
+        this.nPercentiles = nPercentiles;
+
+        this.nDecayFunctions = decayFunctions.length;
+        this.nCutoffs = cutoffsMinutes.length;
+
+        this.cutoffsSeconds = new int[nCutoffs];
+        for (int c = 0; c < nCutoffs; c++) cutoffsSeconds[c] = cutoffsMinutes[c] * 60;
+    }
+
+    public int size() {
+        return opportunities.length * nPercentiles * nDecayFunctions * nCutoffs;
+    }
+
+    public int index(int opportunity, int percentile, int decayFunction, int cutoff) {
+        return ((opportunity * nPercentiles + percentile) * nDecayFunctions + decayFunction) * nCutoffs + cutoff;
+    }
+
+    /**
+     * @param travelTimesSeconds travel times indexed by percentile and then by destination, Integer.MAX_VALUE if
+     *                           the destination was not reached
+     */
+    public double[] accumulate(int[][] travelTimesSeconds) {
+        double[] accessibility = new double[size()];
+        double[] weights = new double[nDecayFunctions * nCutoffs];
+
+        for (int p = 0; p < nPercentiles; p++) {
+            int[] travelTimes = travelTimesSeconds[p];
+
+            for (int destination = 0; destination < travelTimes.length; destination++) {
+                int travelTime = travelTimes[destination];
+                if (travelTime == Integer.MAX_VALUE) continue;
+
+                addDestination(accessibility, weights, p, destination, travelTime);
+            }
+        }
+
+        return accessibility;
+    }
+
+    /**
+     * Same as above, for the sparse travel times of a TravelTimeCache. Cached travel times are whole minutes, so
+     * decay functions are evaluated at the start of each minute; results may differ slightly from routing directly.
+     *
+     * @param destinations       reached destinations
+     * @param travelTimesMinutes travel times indexed by percentile and then by position in destinations,
+     *                           Short.MAX_VALUE if not reached
+     */
+    public double[] accumulate(int[] destinations, short[][] travelTimesMinutes) {
+        double[] accessibility = new double[size()];
+        double[] weights = new double[nDecayFunctions * nCutoffs];
+
+        for (int p = 0; p < nPercentiles; p++) {
+            short[] travelTimes = travelTimesMinutes[p];
+
+            for (int i = 0; i < destinations.length; i++) {
+                short travelTime = travelTimes[i];
+                if (travelTime == Short.MAX_VALUE) continue;
+
+                addDestination(accessibility, weights, p, destinations[i], travelTime * 60);
+            }
+        }
+
+        return accessibility;
+    }
+
+    private void addDestination(double[] accessibility, double[] weights, int p, int destination, int travelTimeSeconds) {
+        boolean anyWeight = false;
+        for (int k = 0; k < nDecayFunctions; k++) {
+            for (int c = 0; c < nCutoffs; c++) {
+                double weight = decayFunctions[k].computeWeight(cutoffsSeconds[c], travelTimeSeconds);
+                weights[k * nCutoffs + c] = weight;
+                anyWeight |= weight > 0;
+            }
+        }
+        if (!anyWeight) return;
+
+        for (int o = 0; o < opportunities.length; o++) {
+            double count = opportunities[o][destination];
+            if (count == 0) continue;
+
+            int offset = index(o, p, 0, 0);
+            for (int w = 0; w < weights.length; w++) {
+                accessibility[offset + w] += weights[w] * count;
+            }
+        }
+    }
+}
@@ -1,40 +1,76 @@
 package org.ipea.r5r.Process;
 
-import com.conveyal.r5.OneOriginResult;
-import com.conveyal.r5.analyst.TravelTimeComputer;
-import com.conveyal.r5.analyst.cluster.RegionalTask;
 import com.conveyal.r5.analyst.decay.*;
-import com.conveyal.r5.transit.TransportNetwork;
-import org.ipea.r5r.R5.R5TravelTimeComputer;
 import org.ipea.r5r.RDataFrame;
 import org.ipea.r5r.RoutingProperties;
 
-import java.lang.reflect.Field;
 import java.text.ParseException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ForkJoinPool;
 
 public class AccessibilityEstimator extends R5DataFrameProcess {
 
-    private DecayFunction decayFunction;
+    private String[] decayFunctionNames;
+    private DecayFunction[] decayFunctions;
 
-    public void setDecayFunction(String decayFunction, double decayValue) {
-        decayFunction = decayFunction.toUpperCase();
-        if (decayFunction.equals("STEP")) { this.decayFunction = new StepDecayFunction(); }
-        if (decayFunction.equals("EXPONENTIAL")) { this.decayFunction = new ExponentialDecayFunction(); }
+    private AccessibilityAccumulator accumulator;
+
+    private TravelTimeCache travelTimeCache = null;
+
+    public static DecayFunction buildDecayFunction(String decayFunctionName, double decayValue) {
+        DecayFunction decayFunction = null;
+        decayFunctionName = decayFunctionName.toUpperCase();
+        if (decayFunctionName.equals("STEP")) { decayFunction = new StepDecayFunction(); }
+        if (decayFunctionName.equals("EXPONENTIAL")) { decayFunction = new ExponentialDecayFunction(); }
 
-        if (decayFunction.equals("FIXED_EXPONENTIAL")) {
-            this.decayFunction = new FixedExponentialDecayFunction();
-            ((FixedExponentialDecayFunction) this.decayFunction).decayConstant = decayValue;
+        if (decayFunctionName.equals("FIXED_EXPONENTIAL")) {
+            decayFunction = new FixedExponentialDecayFunction();
+            ((FixedExponentialDecayFunction) decayFunction).decayConstant = decayValue;
+        }
+        if (decayFunctionName.equals("LINEAR")) {
+            decayFunction = new LinearDecayFunction();
+            ((LinearDecayFunction) decayFunction).widthMinutes = (int) decayValue;
+        }
+        if (decayFunctionName.equals("LOGISTIC")) {
+            decayFunction = new LogisticDecayFunction();
+            ((LogisticDecayFunction) decayFunction).standardDeviationMinutes = decayValue;
         }
-        if (decayFunction.equals("LINEAR")) {
-            this.decayFunction = new LinearDecayFunction();
-            ((LinearDecayFunction) this.decayFunction).widthMinutes = (int) decayValue;
+
+        if (decayFunction != null) decayFunction.prepare();
+        return decayFunction;
+    }
+
+    public void setDecayFunction(String decayFunction, double decayValue) {
+        setDecayFunctions(new String[]{decayFunction}, new double[]{decayValue});
+    }
+
+    /**
+     * Several decay functions are evaluated over the same travel times, so that comparing them does not require
+     * routing every origin once per function. Results get an extra decay_function column when more than one
+     * function is given.
+     */
+    public void setDecayFunctions(String[] decayFunctions, double[] decayValues) {
+        if (decayFunctions.length != decayValues.length) {
+            throw new IllegalArgumentException("Each decay function must have one decay value.");
         }
-        if (decayFunction.equals("LOGISTIC")) {
-            this.decayFunction = new LogisticDecayFunction();
-            ((LogisticDecayFunction) this.decayFunction).standardDeviationMinutes = decayValue;
+
+        this.decayFunctionNames = new String[decayFunctions.length];
+        this.decayFunctions = new DecayFunction[decayFunctions.length];
+        for (int k = 0; k < decayFunctions.length; k++) {
+            this.decayFunctionNames[k] = decayFunctions[k].toUpperCase();
+            this.decayFunctions[k] = buildDecayFunction(decayFunctions[k], decayValues[k]);
+            if (this.decayFunctions[k] == null) {
+                throw new IllegalArgumentException("Unknown decay function: " + decayFunctions[k]);
+            }
         }
-        this.decayFunction.prepare();
+    }
+
+    /**
+     * Computes accessibility from the travel times of a previous travel time matrix instead of routing. Origins,
+     * destinations and percentiles are taken from the cache; opportunity counts must follow the cached destinations.
+     */
+    public void setTravelTimeCache(TravelTimeCache travelTimeCache) {
+        this.travelTimeCache = travelTimeCache;
     }
 
     @Override
@@ -46,14 +82,33 @@ public class AccessibilityEstimator extends R5DataFrameProcess {
         super(threadPool, routingProperties);
     }
 
+    @Override
+    public RDataFrame run() throws ExecutionException, InterruptedException {
+        accumulator = new AccessibilityAccumulator(decayFunctions, routingProperties.cutoffs, opportunityWeights,
+                routingProperties.percentiles.length);
+
+        return super.run();
+    }
+
+    // no routing is done from cached travel times, so destinations are neither built nor linked
+    @Override
+    protected void buildDestinationPointSet() {
+        if (travelTimeCache == null) {
+            super.buildDestinationPointSet();
+        }
+    }
+
     @Override
     protected RDataFrame runProcess(int index) throws ParseException {
-        RegionalTask request = buildRegionalTask(index);
+        double[] accessibility;
+        if (travelTimeCache != null) {
+            accessibility = accumulator.accumulate(travelTimeCache.getDestinations(index), travelTimeCache.getTravelTimes(index));
+        } else {
+            accessibility = accumulator.accumulate(computePercentileTravelTimes(index));
+        }
 
-        TravelTimeComputer computer = new R5TravelTimeComputer(request, transportNetwork);
-        OneOriginResult travelTimeResults = computer.computeTravelTimes();
-        RDataFrame travelTimesTable = buildDataFrameStructure(fromIds[index], 10);
-        populateDataFrame(travelTimeResults, travelTimesTable);
+        RDataFrame travelTimesTable = buildDataFrameStructure(fromIds[index], accumulator.size());
+        populateDataFrame(accessibility, travelTimesTable);
 
         if (travelTimesTable.nRow() > 0) {
             return travelTimesTable;
@@ -62,34 +117,25 @@ public class AccessibilityEstimator extends R5DataFrameProcess {
         }
     }
 
-    private void populateDataFrame(OneOriginResult travelTimeResults, RDataFrame travelTimesTable) {
-        // Create Field object
-        Field privateField = null;
-        try {
-            privateField = travelTimeResults.accessibility.getClass().getDeclaredField("cumulativeOpportunities");
-
-            // Set the accessibility as true
-            privateField.setAccessible(true);
-
-            double[][][] accessibility = (double[][][]) privateField.get(travelTimeResults.accessibility);
+    private void populateDataFrame(double[] accessibility, RDataFrame travelTimesTable) {
+        int nOpportunities = this.opportunities.length;
+        int nPercentiles = routingProperties.percentiles.length;
+        int nCutoffs = routingProperties.cutoffs.length;
+        boolean multipleDecayFunctions = decayFunctions.length > 1;
 
-            int nOpportunities = this.opportunities.length;
-            int nPercentiles = routingProperties.percentiles.length;
-            int nCutoffs = routingProperties.cutoffs.length;
-
-            for (int o = 0; o < nOpportunities; o++) {
-                for (int p = 0; p < nPercentiles; p++) {
+        for (int o = 0; o < nOpportunities; o++) {
+            for (int p = 0; p < nPercentiles; p++) {
+                for (int k = 0; k < decayFunctions.length; k++) {
                     for (int c = 0; c < nCutoffs; c++) {
                         travelTimesTable.append();
                         travelTimesTable.set("opportunity", this.opportunities[o]);
                         travelTimesTable.set("percentile", routingProperties.percentiles[p]);
+                        if (multipleDecayFunctions) travelTimesTable.set("decay_function", decayFunctionNames[k]);
                         travelTimesTable.set("cutoff", routingProperties.cutoffs[c]);
-                        travelTimesTable.set("accessibility", accessibility[o][p][c]);
+                        travelTimesTable.set("accessibility", accessibility[accumulator.index(o, p, k, c)]);
                     }
                 }
             }
-        } catch (NoSuchFieldException | IllegalAccessException e) {
-            e.printStackTrace();
         }
     }
 
@@ -100,28 +146,13 @@ public class AccessibilityEstimator extends R5DataFrameProcess {
         travelTimesTable.addStringColumn("id", fromId);
         travelTimesTable.addStringColumn("opportunity", "");
         travelTimesTable.addIntegerColumn("percentile", 0);
+        if (decayFunctions.length > 1) {
+            travelTimesTable.addStringColumn("decay_function", "");
+        }
         travelTimesTable.addIntegerColumn("cutoff", 0);
         travelTimesTable.addDoubleColumn("accessibility", 0.0);
 
         return travelTimesTable;
     }
 
-    @Override
-    protected RegionalTask buildRegionalTask(int index) throws ParseException {
-        RegionalTask request = super.buildRegionalTask(index);
-
-        request.destinationPointSetKeys = this.opportunities;
-        request.destinationPointSets = this.destinationPoints;
-
-        request.percentiles = this.routingProperties.percentiles;
-        request.recordAccessibility = true;
-        request.recordTimes = false;
-        request.includePathResults = false;
-        request.decayFunction = this.decayFunction;
-
-        request.cutoffsMinutes = routingProperties.cutoffs;
-
-        return request;
-    }
-
 }
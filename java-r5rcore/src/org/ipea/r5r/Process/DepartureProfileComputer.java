@@ -0,0 +1,80 @@
+package org.ipea.r5r.Process;
+
+import com.conveyal.r5.analyst.cluster.RegionalTask;
+import org.ipea.r5r.DepartureProfileResult;
+import org.ipea.r5r.R5.DepartureProfileReducer;
+import org.ipea.r5r.RoutingProperties;
+import org.ipea.r5r.Utils.Utils;
+
+import java.text.ParseException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Travel time by departure minute for every reachable origin-destination pair, a compact alternative to expanded
+ * travel time matrices when only the profile over the time window is needed. With frequency-based GTFS the draws of
+ * each minute are summarized by their minimum or median.
+ */
+public class DepartureProfileComputer extends R5Process<DepartureProfileResult, DepartureProfileResult> {
+
+    private DepartureProfileReducer.Stat stat = DepartureProfileReducer.Stat.MEDIAN;
+
+    public DepartureProfileComputer(ForkJoinPool threadPool, RoutingProperties routingProperties) {
+        super(threadPool, routingProperties);
+    }
+
+    public void setStat(String stat) {
+        this.stat = DepartureProfileReducer.Stat.valueOf(stat.toUpperCase());
+    }
+
+    @Override
+    protected DepartureProfileResult runProcess(int index) throws ParseException {
+        RegionalTask request = buildReducerTask(index);
+
+        DepartureProfileReducer reducer = new DepartureProfileReducer(request, transportNetwork, nDestinations, stat);
+        routeWithReducer(request, reducer);
+
+        int timeWindowSize = reducer.getTimeWindowSize();
+        int nReached = 0;
+        for (boolean reached : reducer.reached) {
+            if (reached) nReached++;
+        }
+        if (nReached == 0) return null;
+
+        String[] fromIds = new String[nReached];
+        String[] toIds = new String[nReached];
+        short[] travelTimes = new short[nReached * timeWindowSize];
+
+        int pair = 0;
+        for (int destination = 0; destination < nDestinations; destination++) {
+            if (!reducer.reached[destination]) continue;
+
+            fromIds[pair] = this.fromIds[index];
+            toIds[pair] = this.toIds[destination];
+            System.arraycopy(reducer.profiles, destination * timeWindowSize, travelTimes, pair * timeWindowSize, timeWindowSize);
+            pair++;
+        }
+
+        return new DepartureProfileResult(fromIds, toIds, travelTimes, timeWindowSize, getDepartureTimes(), stat.toString());
+    }
+
+    private String[] getDepartureTimes() {
+        String[] departureTimes = new String[routingProperties.timeWindowSize];
+        int firstDeparture;
+        try {
+            firstDeparture = Utils.getSecondsFromMidnight(departureTime);
+        } catch (ParseException e) {
+            // rethrow as unchecked
+            throw new RuntimeException(e);
+        }
+        for (int minute = 0; minute < departureTimes.length; minute++) {
+            departureTimes[minute] = Utils.getTimeFromSeconds(firstDeparture + minute * 60);
+        }
+        return departureTimes;
+    }
+
+    @Override
+    protected DepartureProfileResult mergeResults(List<DepartureProfileResult> processResults) {
+        return DepartureProfileResult.merge(processResults, routingProperties.timeWindowSize, getDepartureTimes(), stat.toString());
+    }
+}
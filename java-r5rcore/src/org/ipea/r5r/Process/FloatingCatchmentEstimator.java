@@ -0,0 +1,178 @@
+package org.ipea.r5r.Process;
+
+import com.conveyal.r5.analyst.decay.DecayFunction;
+import org.ipea.r5r.RDataFrame;
+import org.ipea.r5r.RoutingProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.text.ParseException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Competitive accessibility using the two-step floating catchment area method (2SFCA). With a decay function other
+ * than STEP this is the enhanced 2SFCA (E2SFCA), where demand and supply are weighted by travel time.
+ *
+ * 1. Supply pass: every origin (demand point) adds its population, weighted by the decay of its travel time, to the
+ *    demand of every opportunity it reaches. Each opportunity then gets a supply-to-demand ratio.
+ * 2. Demand pass: every origin sums the ratios of the opportunities it reaches, weighted in the same way.
+ *
+ * Both passes route from the origins, so the travel time matrix is never stored. During the supply pass each thread
+ * accumulates demand into its own array, and the arrays are summed once all origins are done.
+ *
+ * Travel times are those of the first percentile. Results are given for every opportunity layer and cutoff.
+ */
+public class FloatingCatchmentEstimator extends R5DataFrameProcess {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FloatingCatchmentEstimator.class);
+
+    private DecayFunction decayFunction;
+    private double[] population;
+
+    private int[] cutoffsSeconds;
+    private boolean supplyPass;
+
+    // demand at each destination, indexed by cutoff and destination, one array per thread, created anew on every run
+    private ConcurrentLinkedQueue<double[]> partialDemands;
+    private ThreadLocal<double[]> partialDemand;
+
+    // supply-to-demand ratio of each destination, indexed by opportunity layer, cutoff and destination
+    private double[][] ratios;
+
+    public FloatingCatchmentEstimator(ForkJoinPool threadPool, RoutingProperties routingProperties) {
+        super(threadPool, routingProperties);
+    }
+
+    public void setDecayFunction(String decayFunction, double decayValue) {
+        this.decayFunction = AccessibilityEstimator.buildDecayFunction(decayFunction, decayValue);
+        if (this.decayFunction == null) {
+            throw new IllegalArgumentException("Unknown decay function: " + decayFunction);
+        }
+    }
+
+    /**
+     * Population (demand) at each origin.
+     */
+    public void setPopulation(double[] population) {
+        this.population = population;
+    }
+
+    @Override
+    protected boolean isOneToOne() {
+        return false;
+    }
+
+    @Override
+    public RDataFrame run() throws ExecutionException, InterruptedException {
+        if (population == null || population.length != nOrigins) {
+            throw new IllegalArgumentException("Population must be given for every origin.");
+        }
+
+        int nCutoffs = routingProperties.cutoffs.length;
+        cutoffsSeconds = new int[nCutoffs];
+        for (int c = 0; c < nCutoffs; c++) cutoffsSeconds[c] = routingProperties.cutoffs[c] * 60;
+
+        // pool threads outlive the run, so per-thread arrays from a previous run must not be reused
+        ConcurrentLinkedQueue<double[]> demands = new ConcurrentLinkedQueue<>();
+        int demandLength = nCutoffs * nDestinations;
+        partialDemands = demands;
+        partialDemand = ThreadLocal.withInitial(() -> {
+            double[] partial = new double[demandLength];
+            demands.add(partial);
+            return partial;
+        });
+
+        LOG.info("Computing demand at each destination...");
+        supplyPass = true;
+        super.run();
+
+        double[] demand = new double[demandLength];
+        for (double[] partial : partialDemands) {
+            for (int i = 0; i < demand.length; i++) demand[i] += partial[i];
+        }
+        partialDemands = null;
+        partialDemand = null;
+
+        ratios = new double[opportunities.length][nCutoffs * nDestinations];
+        for (int o = 0; o < opportunities.length; o++) {
+            for (int c = 0; c < nCutoffs; c++) {
+                for (int d = 0; d < nDestinations; d++) {
+                    int i = c * nDestinations + d;
+                    ratios[o][i] = demand[i] > 0 ? opportunityWeights[o][d] / demand[i] : 0.0;
+                }
+            }
+        }
+
+        LOG.info("Computing accessibility at each origin...");
+        supplyPass = false;
+        return super.run();
+    }
+
+    @Override
+    protected RDataFrame runProcess(int index) throws ParseException {
+        int[] travelTimesSeconds = computePercentileTravelTimes(index)[0];
+
+        if (supplyPass) {
+            addDemand(index, travelTimesSeconds);
+            return null;
+        }
+
+        int nCutoffs = cutoffsSeconds.length;
+        double[] accessibility = new double[opportunities.length * nCutoffs];
+
+        for (int d = 0; d < nDestinations; d++) {
+            int travelTime = travelTimesSeconds[d];
+            if (travelTime == Integer.MAX_VALUE) continue;
+
+            for (int c = 0; c < nCutoffs; c++) {
+                double weight = decayFunction.computeWeight(cutoffsSeconds[c], travelTime);
+                if (weight == 0) continue;
+
+                for (int o = 0; o < opportunities.length; o++) {
+                    accessibility[o * nCutoffs + c] += weight * ratios[o][c * nDestinations + d];
+                }
+            }
+        }
+
+        RDataFrame accessibilityTable = buildDataFrameStructure(fromIds[index], accessibility.length);
+        for (int o = 0; o < opportunities.length; o++) {
+            for (int c = 0; c < nCutoffs; c++) {
+                accessibilityTable.append();
+                accessibilityTable.set("opportunity", opportunities[o]);
+                accessibilityTable.set("cutoff", routingProperties.cutoffs[c]);
+                accessibilityTable.set("accessibility", accessibility[o * nCutoffs + c]);
+            }
+        }
+
+        return accessibilityTable;
+    }
+
+    private void addDemand(int index, int[] travelTimesSeconds) {
+        double originPopulation = population[index];
+        if (originPopulation == 0) return;
+
+        double[] demand = partialDemand.get();
+        for (int d = 0; d < nDestinations; d++) {
+            int travelTime = travelTimesSeconds[d];
+            if (travelTime == Integer.MAX_VALUE) continue;
+
+            for (int c = 0; c < cutoffsSeconds.length; c++) {
+                demand[c * nDestinations + d] += originPopulation * decayFunction.computeWeight(cutoffsSeconds[c], travelTime);
+            }
+        }
+    }
+
+    @Override
+    protected RDataFrame buildDataFrameStructure(String fromId, int nRows) {
+        // Build return table
+        RDataFrame accessibilityTable = new RDataFrame(nRows);
+        accessibilityTable.addStringColumn("id", fromId);
+        accessibilityTable.addStringColumn("opportunity", "");
+        accessibilityTable.addIntegerColumn("cutoff", 0);
+        accessibilityTable.addDoubleColumn("accessibility", 0.0);
+
+        return accessibilityTable;
+    }
+}
@@ -0,0 +1,72 @@
+package org.ipea.r5r.Process;
+
+import com.conveyal.r5.analyst.cluster.RegionalTask;
+import org.ipea.r5r.R5.TopKTravelTimeReducer;
+import org.ipea.r5r.RDataFrame;
+import org.ipea.r5r.RoutingProperties;
+
+import java.text.ParseException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Finds the k destinations closest in travel time to each origin, e.g. the nearest hospital or the three nearest
+ * schools, without building the travel time matrix. Destinations are ranked by the first percentile, and at most k
+ * rows are returned per origin.
+ */
+public class NearestDestinationsComputer extends R5DataFrameProcess {
+
+    private int k = 1;
+
+    public NearestDestinationsComputer(ForkJoinPool threadPool, RoutingProperties routingProperties) {
+        super(threadPool, routingProperties);
+    }
+
+    public void setK(int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("The number of nearest destinations must be at least 1.");
+        }
+        this.k = k;
+    }
+
+    @Override
+    protected boolean isOneToOne() {
+        return false;
+    }
+
+    @Override
+    protected RDataFrame runProcess(int index) throws ParseException {
+        RegionalTask request = buildReducerTask(index);
+
+        TopKTravelTimeReducer reducer = new TopKTravelTimeReducer(request, transportNetwork, nDestinations, k);
+        routeWithReducer(request, reducer);
+
+        int nNearest = reducer.size();
+        if (nNearest == 0) return null;
+
+        int[] destinations = new int[nNearest];
+        int[] travelTimesSeconds = new int[nNearest];
+        reducer.drainSorted(destinations, travelTimesSeconds);
+
+        RDataFrame nearestTable = buildDataFrameStructure(fromIds[index], nNearest);
+        for (int i = 0; i < nNearest; i++) {
+            nearestTable.append();
+            nearestTable.set("rank", i + 1);
+            nearestTable.set("to_id", toIds[destinations[i]]);
+            nearestTable.set("travel_time", travelTimesSeconds[i] / 60);
+        }
+
+        return nearestTable;
+    }
+
+    @Override
+    protected RDataFrame buildDataFrameStructure(String fromId, int nRows) {
+        // Build return table
+        RDataFrame nearestTable = new RDataFrame(nRows);
+        nearestTable.addStringColumn("from_id", fromId);
+        nearestTable.addIntegerColumn("rank", 0);
+        nearestTable.addStringColumn("to_id", "");
+        nearestTable.addIntegerColumn("travel_time", 0);
+
+        return nearestTable;
+    }
+}
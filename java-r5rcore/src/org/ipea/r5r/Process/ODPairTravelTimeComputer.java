@@ -0,0 +1,187 @@
+package org.ipea.r5r.Process;
+
+import com.conveyal.r5.analyst.cluster.RegionalTask;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import org.ipea.r5r.R5.PercentileTravelTimeReducer;
+import org.ipea.r5r.RDataFrame;
+import org.ipea.r5r.RoutingProperties;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Travel times for a list of origin-destination pairs, instead of all origins to all destinations. Pairs are grouped
+ * by origin, and every distinct origin is routed once. Distinct destinations form a single point set, so they are
+ * linked once and shared by all origins, and each origin only reduces the travel times to its own destinations.
+ * Rows are returned in the order of the input pairs, unreached pairs included with missing travel times.
+ *
+ * Points are identified by their ids: pairs sharing an origin (or destination) id are assumed to share its location.
+ */
+public class ODPairTravelTimeComputer extends R5DataFrameProcess {
+
+    // distinct destinations of each distinct origin, as indices into the distinct destinations
+    private int[][] originDestinations;
+    // position of the destination of each pair of each distinct origin in originDestinations
+    private int[][] pairSlots;
+    // position in the input of each pair of each distinct origin
+    private int[][] pairIndices;
+    private int nPairs;
+
+    public ODPairTravelTimeComputer(ForkJoinPool threadPool, RoutingProperties routingProperties) {
+        super(threadPool, routingProperties);
+    }
+
+    public void setODPairs(String[] fromIds, double[] fromLats, double[] fromLons,
+                           String[] toIds, double[] toLats, double[] toLons) {
+        nPairs = fromIds.length;
+        if (toIds.length != nPairs) {
+            throw new IllegalArgumentException("Origins and destinations must have the same length.");
+        }
+
+        TObjectIntMap<String> originIndex = new TObjectIntHashMap<>(16, 0.5f, -1);
+        TObjectIntMap<String> destinationIndex = new TObjectIntHashMap<>(16, 0.5f, -1);
+        TIntArrayList distinctOrigins = new TIntArrayList();
+        TIntArrayList distinctDestinations = new TIntArrayList();
+        List<TIntArrayList> destinationsByOrigin = new ArrayList<>();
+        List<TIntArrayList> pairsByOrigin = new ArrayList<>();
+
+        for (int pair = 0; pair < nPairs; pair++) {
+            int origin = originIndex.get(fromIds[pair]);
+            if (origin == -1) {
+                origin = distinctOrigins.size();
+                originIndex.put(fromIds[pair], origin);
+                distinctOrigins.add(pair);
+                destinationsByOrigin.add(new TIntArrayList());
+                pairsByOrigin.add(new TIntArrayList());
+            }
+
+            int destination = destinationIndex.get(toIds[pair]);
+            if (destination == -1) {
+                destination = distinctDestinations.size();
+                destinationIndex.put(toIds[pair], destination);
+                distinctDestinations.add(pair);
+            }
+
+            destinationsByOrigin.get(origin).add(destination);
+            pairsByOrigin.get(origin).add(pair);
+        }
+
+        setOrigins(select(fromIds, distinctOrigins), select(fromLats, distinctOrigins), select(fromLons, distinctOrigins));
+        setDestinations(select(toIds, distinctDestinations), select(toLats, distinctDestinations), select(toLons, distinctDestinations));
+
+        int nOrigins = destinationsByOrigin.size();
+        originDestinations = new int[nOrigins][];
+        pairSlots = new int[nOrigins][];
+        pairIndices = new int[nOrigins][];
+        for (int origin = 0; origin < nOrigins; origin++) {
+            TIntArrayList destinations = destinationsByOrigin.get(origin);
+            TIntIntMap slots = new TIntIntHashMap(16, 0.5f, -1, -1);
+            TIntArrayList distinct = new TIntArrayList();
+
+            pairSlots[origin] = new int[destinations.size()];
+            for (int i = 0; i < destinations.size(); i++) {
+                int destination = destinations.getQuick(i);
+                int slot = slots.get(destination);
+                if (slot == -1) {
+                    slot = distinct.size();
+                    slots.put(destination, slot);
+                    distinct.add(destination);
+                }
+                pairSlots[origin][i] = slot;
+            }
+
+            originDestinations[origin] = distinct.toArray();
+            pairIndices[origin] = pairsByOrigin.get(origin).toArray();
+        }
+    }
+
+    private static String[] select(String[] values, TIntArrayList indices) {
+        String[] selected = new String[indices.size()];
+        for (int i = 0; i < selected.length; i++) selected[i] = values[indices.getQuick(i)];
+        return selected;
+    }
+
+    private static double[] select(double[] values, TIntArrayList indices) {
+        double[] selected = new double[indices.size()];
+        for (int i = 0; i < selected.length; i++) selected[i] = values[indices.getQuick(i)];
+        return selected;
+    }
+
+    @Override
+    protected boolean isOneToOne() {
+        return false;
+    }
+
+    @Override
+    protected RDataFrame runProcess(int index) throws ParseException {
+        int[] destinations = originDestinations[index];
+
+        RegionalTask request = buildReducerTask(index);
+        PercentileTravelTimeReducer reducer =
+                new PercentileTravelTimeReducer(request, transportNetwork, nDestinations, destinations);
+        routeWithReducer(request, reducer);
+        int[][] travelTimesSeconds = reducer.travelTimesSeconds;
+
+        int[] slots = pairSlots[index];
+        RDataFrame travelTimesTable = buildDataFrameStructure(fromIds[index], slots.length);
+        for (int slot : slots) {
+            travelTimesTable.append();
+            travelTimesTable.set("to_id", toIds[destinations[slot]]);
+
+            for (int p = 0; p < routingProperties.percentiles.length; p++) {
+                int travelTime = travelTimesSeconds[p][slot];
+                if (travelTime != Integer.MAX_VALUE) {
+                    travelTimesTable.set("travel_time_p" + String.format("%02d", routingProperties.percentiles[p]), travelTime / 60);
+                }
+            }
+        }
+
+        return travelTimesTable;
+    }
+
+    /**
+     * Results come grouped by origin, in the order of each origin's pairs, so rows are moved back to the order of the
+     * input pairs. Nothing is moved when the results were saved to CSV files instead.
+     */
+    @Override
+    protected RDataFrame mergeResults(List<RDataFrame> processResults) {
+        RDataFrame mergedDataFrame = super.mergeResults(processResults);
+        if (mergedDataFrame.nRow() != nPairs) return mergedDataFrame;
+
+        int[] pairOfRow = new int[nPairs];
+        int row = 0;
+        for (int[] pairs : pairIndices) {
+            for (int pair : pairs) pairOfRow[row++] = pair;
+        }
+
+        for (ArrayList<Object> column : mergedDataFrame.getDataFrame().values()) {
+            Object[] values = new Object[nPairs];
+            for (int i = 0; i < nPairs; i++) values[pairOfRow[i]] = column.get(i);
+            column.clear();
+            column.addAll(Arrays.asList(values));
+        }
+
+        return mergedDataFrame;
+    }
+
+    @Override
+    protected RDataFrame buildDataFrameStructure(String fromId, int nRows) {
+        // Build return table
+        RDataFrame travelTimesTable = new RDataFrame(nRows);
+        travelTimesTable.addStringColumn("from_id", fromId);
+        travelTimesTable.addStringColumn("to_id", "");
+        for (int percentile : routingProperties.percentiles) {
+            String ps = String.format("%02d", percentile);
+            travelTimesTable.addIntegerColumn("travel_time_p" + ps, Integer.MAX_VALUE);
+        }
+
+        return travelTimesTable;
+    }
+}
@@ -98,7 +98,7 @@ public class ParetoFrontierCalculator  extends R5DataFrameProcess {
     protected RegionalTask buildRegionalTask(int index) throws ParseException {
         RegionalTask request = super.buildRegionalTask(index);
 
-        request.destinationPointSetKeys = this.opportunities;
+        request.destinationPointSetKeys = DESTINATION_POINT_SET_KEYS;
         request.destinationPointSets = destinationPoints;
 
         return request;
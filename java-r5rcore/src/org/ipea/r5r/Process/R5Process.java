@@ -13,12 +13,15 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
+import org.ipea.r5r.R5.PercentileTravelTimeReducer;
+import org.ipea.r5r.R5.R5TravelTimeComputer;
 import org.ipea.r5r.RoutingProperties;
 import org.ipea.r5r.Utils.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.conveyal.r5.analyst.FreeFormPointSet;
+import com.conveyal.r5.analyst.TravelTimeReducer;
 import com.conveyal.r5.analyst.cluster.RegionalTask;
 import com.conveyal.r5.analyst.scenario.Scenario;
 import com.conveyal.r5.api.util.LegMode;
@@ -46,10 +49,13 @@ public abstract class R5Process<T, A> {
     protected double[] toLats;
     protected double[] toLons;
     protected String[] opportunities;
-    protected int[][] opportunityCounts;
+    // opportunity weights indexed by layer and then by destination, all layers share the destination geometry
+    protected double[][] opportunityWeights;
     protected int nDestinations;
 
+    // a single point set with the destination geometry, linked once and shared by all opportunity layers
     protected FreeFormPointSet[] destinationPoints;
+    protected static final String[] DESTINATION_POINT_SET_KEYS = new String[]{"destinations"};
 
     protected EnumSet<LegMode> directModes;
     protected EnumSet<TransitModes> transitModes;
@@ -74,7 +80,10 @@ public abstract class R5Process<T, A> {
     }
 
     public A run() throws ExecutionException, InterruptedException {
-        buildDestinationPointSet();
+        // processes that route more than once over the same destinations build and link them only once
+        if (destinationPoints == null) {
+            buildDestinationPointSet();
+        }
         // TODO shouldn't this start at 0?
         AtomicInteger totalProcessed = new AtomicInteger(1);
 
@@ -111,42 +120,40 @@ public abstract class R5Process<T, A> {
      * replace it with a no-op.
      */
     protected void buildDestinationPointSet() {
-        destinationPoints = new FreeFormPointSet[this.opportunities.length];
-
-        for (int i = 0; i < this.opportunities.length; i++) {
-            ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
-            DataOutputStream pointStream = new DataOutputStream(dataStream);
-
-            try {
-                pointStream.writeInt(toIds.length);
-                for (String toId : toIds) {
-                    pointStream.writeUTF(toId);
-                }
-                for (double toLat : toLats) {
-                    pointStream.writeDouble(toLat);
-                }
-                for (double toLon : toLons) {
-                    pointStream.writeDouble(toLon);
-                }
-                for (int opportunity : opportunityCounts[i]) {
-                    pointStream.writeDouble(opportunity);
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
+        ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
+        DataOutputStream pointStream = new DataOutputStream(dataStream);
+
+        try {
+            pointStream.writeInt(toIds.length);
+            for (String toId : toIds) {
+                pointStream.writeUTF(toId);
+            }
+            for (double toLat : toLats) {
+                pointStream.writeDouble(toLat);
             }
+            for (double toLon : toLons) {
+                pointStream.writeDouble(toLon);
+            }
+            // opportunities are accumulated by r5r from opportunityWeights, the point set only carries the geometry
+            for (int i = 0; i < toIds.length; i++) {
+                pointStream.writeDouble(0.0);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
 
-            ByteArrayInputStream pointsInput = new ByteArrayInputStream(dataStream.toByteArray());
+        ByteArrayInputStream pointsInput = new ByteArrayInputStream(dataStream.toByteArray());
 
-            try {
-                destinationPoints[i] = new FreeFormPointSet(pointsInput);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        destinationPoints = new FreeFormPointSet[1];
+        try {
+            destinationPoints[0] = new FreeFormPointSet(pointsInput);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
 
-            if (!this.directModes.isEmpty()) {
-                for (LegMode mode : this.directModes) {
-                    transportNetwork.linkageCache.getLinkage(destinationPoints[i], transportNetwork.streetLayer, StreetMode.valueOf(mode.toString()));
-                }
+        if (!this.directModes.isEmpty()) {
+            for (LegMode mode : this.directModes) {
+                transportNetwork.linkageCache.getLinkage(destinationPoints[0], transportNetwork.streetLayer, StreetMode.valueOf(mode.toString()));
             }
         }
     }
@@ -161,13 +168,25 @@ public abstract class R5Process<T, A> {
     }
 
     public void setDestinations(String[] toIds, double[] toLats, double[] toLons, String[] opportunities, int[][] opportunityCounts) {
+        double[][] opportunityWeights = new double[opportunityCounts.length][];
+        for (int o = 0; o < opportunityCounts.length; o++) {
+            opportunityWeights[o] = new double[opportunityCounts[o].length];
+            for (int i = 0; i < opportunityCounts[o].length; i++) opportunityWeights[o][i] = opportunityCounts[o][i];
+        }
+
+        setDestinations(toIds, toLats, toLons, opportunities, opportunityWeights);
+    }
+
+    public void setDestinations(String[] toIds, double[] toLats, double[] toLons, String[] opportunities, double[][] opportunityWeights) {
         this.toIds = toIds;
         this.toLats = toLats;
         this.toLons = toLons;
         this.opportunities = opportunities;
-        this.opportunityCounts = opportunityCounts;
+        this.opportunityWeights = opportunityWeights;
 
         this.nDestinations = toIds.length;
+        // the point set is rebuilt for the new destinations on the next run
+        this.destinationPoints = null;
 
         // set maxDestinations in R5 for detailed path information retrieval
         // PathResult.maxDestinations does not exist in R5 anymore
@@ -279,4 +298,41 @@ public abstract class R5Process<T, A> {
         request.percentiles = routingProperties.percentiles;
         return request;
     }
+
+    /**
+     * Build a RegionalTask for routing with one of r5r's own travel time reducers, see routeWithReducer().
+     */
+    protected RegionalTask buildReducerTask(int index) throws ParseException {
+        RegionalTask request = buildRegionalTask(index);
+        request.destinationPointSetKeys = DESTINATION_POINT_SET_KEYS;
+        request.destinationPointSets = this.destinationPoints;
+        // r5r's reducers keep their own results, so R5's per-percentile travel time arrays are not allocated
+        request.recordTimes = false;
+        request.recordAccessibility = false;
+        request.includePathResults = false;
+        return request;
+    }
+
+    /**
+     * Routes from the origin of the request, handing the travel times to every destination to the given reducer.
+     */
+    protected void routeWithReducer(RegionalTask request, TravelTimeReducer reducer) {
+        R5TravelTimeComputer computer = new R5TravelTimeComputer(request, transportNetwork);
+        computer.setTravelTimeReducer(reducer);
+        computer.computeTravelTimes();
+    }
+
+    /**
+     * Routes from one origin and returns the travel times in seconds to every destination, indexed by percentile and
+     * then by destination. Unreached destinations, and those reached after the maximum trip duration, are
+     * Integer.MAX_VALUE.
+     */
+    protected int[][] computePercentileTravelTimes(int index) throws ParseException {
+        RegionalTask request = buildReducerTask(index);
+
+        PercentileTravelTimeReducer reducer = new PercentileTravelTimeReducer(request, transportNetwork, nDestinations);
+        routeWithReducer(request, reducer);
+
+        return reducer.travelTimesSeconds;
+    }
 }
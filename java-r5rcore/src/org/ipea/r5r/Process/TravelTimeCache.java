@@ -0,0 +1,108 @@
+package org.ipea.r5r.Process;
+
+import java.util.Arrays;
+
+/**
+ * Compact copy of the last travel time matrix, kept so that accessibility for new opportunity layers can be computed
+ * without routing again. For each origin only the reached destinations are stored, with their travel times in whole
+ * minutes as shorts, one array per percentile.
+ *
+ * Each origin is written by a single routing task, so no synchronization is needed while the matrix is computed.
+ */
+public class TravelTimeCache {
+
+    private static final int[] NO_DESTINATIONS = new int[0];
+
+    public final String[] fromIds;
+    public final double[] fromLats;
+    public final double[] fromLons;
+
+    public final String[] toIds;
+    public final double[] toLats;
+    public final double[] toLons;
+
+    public final int[] percentiles;
+    public final int maxTripDuration;
+
+    // reached destinations of each origin, in increasing order
+    private final int[][] destinations;
+    // travel times in minutes, indexed by origin, percentile, and position in destinations[origin]
+    private final short[][][] travelTimes;
+
+    public TravelTimeCache(String[] fromIds, double[] fromLats, double[] fromLons,
+                           String[] toIds, double[] toLats, double[] toLons,
+                           int[] percentiles, int maxTripDuration) {
+        this.fromIds = fromIds;
+        this.fromLats = fromLats;
+        this.fromLons = fromLons;
+        this.toIds = toIds;
+        this.toLats = toLats;
+        this.toLons = toLons;
+        this.percentiles = percentiles.clone();
+        this.maxTripDuration = maxTripDuration;
+
+        this.destinations = new int[fromIds.length][];
+        this.travelTimes = new short[fromIds.length][][];
+    }
+
+    public int nOrigins() {
+        return fromIds.length;
+    }
+
+    public int nDestinations() {
+        return toIds.length;
+    }
+
+    /**
+     * Stores the travel times from one origin, in minutes, indexed by percentile and then by destination. Values
+     * above the maximum trip duration are treated as unreached. Destinations are considered reached if the first
+     * percentile is reached, as in the travel time matrix output.
+     */
+    public void put(int origin, int[][] travelTimesMinutes) {
+        int[] firstPercentile = travelTimesMinutes[0];
+
+        int nReached = 0;
+        for (int tt : firstPercentile) {
+            if (tt <= maxTripDuration) nReached++;
+        }
+
+        int[] reached = new int[nReached];
+        short[][] times = new short[travelTimesMinutes.length][nReached];
+
+        int i = 0;
+        for (int destination = 0; destination < firstPercentile.length; destination++) {
+            if (firstPercentile[destination] > maxTripDuration) continue;
+
+            reached[i] = destination;
+            for (int p = 0; p < travelTimesMinutes.length; p++) {
+                int tt = travelTimesMinutes[p][destination];
+                times[p][i] = tt <= maxTripDuration ? (short) tt : Short.MAX_VALUE;
+            }
+            i++;
+        }
+
+        destinations[origin] = reached;
+        travelTimes[origin] = times;
+    }
+
+    /**
+     * Same as above, for travel times that do not vary between percentiles (street-only travel).
+     */
+    public void putUnvarying(int origin, int[] travelTimesMinutes) {
+        int[][] travelTimesByPercentile = new int[percentiles.length][];
+        Arrays.fill(travelTimesByPercentile, travelTimesMinutes);
+        put(origin, travelTimesByPercentile);
+    }
+
+    public int[] getDestinations(int origin) {
+        return destinations[origin] == null ? NO_DESTINATIONS : destinations[origin];
+    }
+
+    /**
+     * Travel times in minutes from one origin, indexed by percentile and then by position in getDestinations().
+     * Short.MAX_VALUE marks a percentile that was not reached.
+     */
+    public short[][] getTravelTimes(int origin) {
+        return travelTimes[origin] == null ? new short[percentiles.length][0] : travelTimes[origin];
+    }
+}
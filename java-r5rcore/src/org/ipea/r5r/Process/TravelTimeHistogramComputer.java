@@ -0,0 +1,86 @@
+package org.ipea.r5r.Process;
+
+import org.ipea.r5r.RDataFrame;
+import org.ipea.r5r.RoutingProperties;
+
+import java.text.ParseException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Distribution of travel times from each origin, weighted by the opportunities at each destination. Returns one row
+ * per origin, opportunity layer and percentile, with one column per minute of the maximum trip duration:
+ * column minute_m holds the opportunities reached in [m - 1, m) minutes, or within m minutes if cumulative.
+ */
+public class TravelTimeHistogramComputer extends R5DataFrameProcess {
+
+    private boolean cumulative = false;
+
+    public TravelTimeHistogramComputer(ForkJoinPool threadPool, RoutingProperties routingProperties) {
+        super(threadPool, routingProperties);
+    }
+
+    public void setCumulative(boolean cumulative) {
+        this.cumulative = cumulative;
+    }
+
+    @Override
+    protected boolean isOneToOne() {
+        return false;
+    }
+
+    @Override
+    protected RDataFrame runProcess(int index) throws ParseException {
+        int[][] travelTimesSeconds = computePercentileTravelTimes(index);
+        int nPercentiles = routingProperties.percentiles.length;
+
+        // indexed by opportunity layer, percentile and minute
+        double[][][] histogram = new double[opportunities.length][nPercentiles][maxTripDuration];
+        for (int p = 0; p < nPercentiles; p++) {
+            for (int d = 0; d < nDestinations; d++) {
+                int travelTime = travelTimesSeconds[p][d];
+                if (travelTime == Integer.MAX_VALUE) continue;
+
+                int minute = travelTime / 60;
+                for (int o = 0; o < opportunities.length; o++) {
+                    histogram[o][p][minute] += opportunityWeights[o][d];
+                }
+            }
+        }
+
+        RDataFrame histogramTable = buildDataFrameStructure(fromIds[index], opportunities.length * nPercentiles);
+        for (int o = 0; o < opportunities.length; o++) {
+            for (int p = 0; p < nPercentiles; p++) {
+                histogramTable.append();
+                histogramTable.set("opportunity", opportunities[o]);
+                histogramTable.set("percentile", routingProperties.percentiles[p]);
+
+                double total = 0;
+                for (int minute = 0; minute < maxTripDuration; minute++) {
+                    double count = histogram[o][p][minute];
+                    total += count;
+                    histogramTable.set(columnName(minute + 1), cumulative ? total : count);
+                }
+            }
+        }
+
+        return histogramTable;
+    }
+
+    private static String columnName(int minute) {
+        return "minute_" + String.format("%03d", minute);
+    }
+
+    @Override
+    protected RDataFrame buildDataFrameStructure(String fromId, int nRows) {
+        // Build return table
+        RDataFrame histogramTable = new RDataFrame(nRows);
+        histogramTable.addStringColumn("id", fromId);
+        histogramTable.addStringColumn("opportunity", "");
+        histogramTable.addIntegerColumn("percentile", 0);
+        for (int minute = 1; minute <= maxTripDuration; minute++) {
+            histogramTable.addDoubleColumn(columnName(minute), 0.0);
+        }
+
+        return histogramTable;
+    }
+}
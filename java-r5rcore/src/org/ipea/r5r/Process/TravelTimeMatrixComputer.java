@@ -2,16 +2,21 @@ package org.ipea.r5r.Process;
 
 import com.conveyal.analysis.models.CsvResultOptions;
 import com.conveyal.r5.OneOriginResult;
-import com.conveyal.r5.analyst.TravelTimeComputer;
 import com.conveyal.r5.analyst.cluster.PathResult;
 import com.conveyal.r5.analyst.cluster.RegionalTask;
 import com.conveyal.r5.analyst.cluster.TravelTimeResult;
+import com.conveyal.r5.api.util.LegMode;
 import com.conveyal.r5.api.util.SearchType;
+import com.conveyal.r5.profile.ProfileRequest;
 import com.conveyal.r5.transit.TransportNetwork;
 import com.conveyal.r5.transit.path.RouteSequence;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Multimap;
+import org.ipea.r5r.R5.AdaptiveTravelTimeReducer;
+import org.ipea.r5r.R5.ExactTravelTimeReducer;
+import org.ipea.r5r.R5.PercentileTravelTimeReducer;
 import org.ipea.r5r.R5.R5TravelTimeComputer;
+import org.ipea.r5r.R5.StreetTravelTimeComputer;
 import org.ipea.r5r.RDataFrame;
 import org.ipea.r5r.RoutingProperties;
 import org.ipea.r5r.Utils.Utils;
@@ -20,6 +25,7 @@ import org.slf4j.LoggerFactory;
 
 import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ForkJoinPool;
 
 import static com.google.common.base.Preconditions.checkState;
@@ -92,6 +98,15 @@ public class TravelTimeMatrixComputer extends R5DataFrameProcess {
 
     private int monteCarloDrawsPerMinute;
 
+    // travel times to each destination in street-only matrices, reused across the origins processed by each thread
+    private final ThreadLocal<int[]> streetTravelTimes = ThreadLocal.withInitial(() -> new int[nDestinations]);
+
+    private boolean exact = false;
+    private boolean adaptive = false;
+    private boolean byRides = false;
+
+    private TravelTimeCache travelTimeCache = null;
+
     @Override
     protected boolean isOneToOne() {
         return false;
@@ -102,14 +117,59 @@ public class TravelTimeMatrixComputer extends R5DataFrameProcess {
         this.csvOptions = new CsvResultOptions();
     }
 
+    /**
+     * Keeps a compact copy of the travel times in the given cache, for later accessibility calculations. Not
+     * available for expanded travel times.
+     */
+    public void setTravelTimeCache(TravelTimeCache travelTimeCache) {
+        this.travelTimeCache = travelTimeCache;
+    }
+
+    @Override
+    public RDataFrame run() throws ExecutionException, InterruptedException {
+        exact = isExact();
+        adaptive = isAdaptive();
+        byRides = isByRides();
+        return super.run();
+    }
+
     @Override
     protected RDataFrame runProcess(int index) throws ParseException {
+        if (isStreetOnly()) {
+            return runStreetOnlyProcess(index);
+        }
+
+        if (exact) {
+            return runExactProcess(index);
+        }
+
+        if (adaptive) {
+            return runAdaptiveProcess(index);
+        }
+
         RegionalTask request = buildRegionalTask(index);
 
-        TravelTimeComputer computer = new R5TravelTimeComputer(request, transportNetwork);
+        R5TravelTimeComputer computer = new R5TravelTimeComputer(request, transportNetwork);
+        PercentileTravelTimeReducer[] ridesReducers = null;
+        if (byRides) {
+            ridesReducers = new PercentileTravelTimeReducer[routingProperties.maxRides + 1];
+            for (int rides = 0; rides <= routingProperties.maxRides; rides++) {
+                ridesReducers[rides] = new PercentileTravelTimeReducer(request, transportNetwork, nDestinations);
+            }
+            computer.setMaxRidesTravelTimeReducers(ridesReducers);
+        }
+
         OneOriginResult travelTimeResults = computer.computeTravelTimes();
         RDataFrame travelTimesTable = buildDataFrameStructure(fromIds[index], 10);
-        populateDataFrame(travelTimeResults, travelTimesTable);
+        if (byRides) {
+            populateResultsByRides(travelTimeResults, ridesReducers, travelTimesTable);
+        } else {
+            populateDataFrame(travelTimeResults, travelTimesTable);
+        }
+
+        if (travelTimeCache != null && !routingProperties.expandedTravelTimes) {
+            travelTimeCache.put(index, travelTimeResults.travelTimes.getValues());
+        }
 
         if (travelTimesTable.nRow() > 0) {
             return travelTimesTable;
@@ -118,6 +178,256 @@ public class TravelTimeMatrixComputer extends R5DataFrameProcess {
         }
     }
 
+    /**
+     * Walk, bike and car-only matrices do not depend on the departure time, so they can skip the RAPTOR, Monte Carlo
+     * and percentile machinery. Park and ride is excluded because R5 does not allow it as a direct mode, and
+     * expanded matrices still need R5's per-minute path results.
+     */
+    private boolean isStreetOnly() {
+        return transitModes.isEmpty() &&
+                !directModes.isEmpty() &&
+                !directModes.contains(LegMode.CAR_PARK) &&
+                !routingProperties.expandedTravelTimes;
+    }
+
+    /**
+     * Exact mode only applies to schedule-based networks. Without frequencies, range-RAPTOR produces a single
+     * deterministic travel time per departure minute, so the Monte Carlo draws are meaningless. In exact mode each
+     * minute gets exactly one iteration, and the per-minute profile is summarized as min / avg / max in addition to
+     * the requested percentiles.
+     */
+    private boolean isExact() {
+        if (!routingProperties.exactTravelTimes || routingProperties.expandedTravelTimes) return false;
+
+        if (transportNetwork.transitLayer.hasFrequencies) {
+            LOG.warn("Exact travel times are not available for networks with frequency-based GTFS. " +
+                    "Using Monte Carlo draws instead.");
+            return false;
+        }
+
+        return true;
+    }
+
+    private RDataFrame runExactProcess(int index) throws ParseException {
+        RegionalTask request = buildRegionalTask(index);
+        // one iteration per departure minute
+        request.monteCarloDraws = routingProperties.timeWindowSize;
+        // the reducer keeps its own results, so R5's per-percentile travel time arrays are not allocated
+        request.recordTimes = false;
+
+        ExactTravelTimeReducer reducer = new ExactTravelTimeReducer(request, transportNetwork, nDestinations);
+        R5TravelTimeComputer computer = new R5TravelTimeComputer(request, transportNetwork);
+        computer.setTravelTimeReducer(reducer);
+        computer.computeTravelTimes();
+
+        if (travelTimeCache != null) {
+            travelTimeCache.put(index, reducer.percentileTravelTimes);
+        }
+
+        RDataFrame travelTimesTable = buildDataFrameStructure(fromIds[index], 10);
+        for (int destination = 0; destination < nDestinations; destination++) {
+            // same filter as the other matrix paths, on the first percentile
+            if (reducer.percentileTravelTimes[0][destination] <= maxTripDuration) {
+                travelTimesTable.append();
+                travelTimesTable.set("to_id", toIds[destination]);
+
+                for (int p = 0; p < this.routingProperties.percentiles.length; p++) {
+                    int tt = reducer.percentileTravelTimes[p][destination];
+                    if (tt <= maxTripDuration) {
+                        travelTimesTable.set("travel_time_p" + String.format("%02d", this.routingProperties.percentiles[p]), tt);
+                    }
+                }
+
+                travelTimesTable.set("travel_time_min", reducer.minTravelTimes[destination]);
+                if (reducer.avgTravelTimes[destination] <= maxTripDuration) {
+                    travelTimesTable.set("travel_time_avg", reducer.avgTravelTimes[destination]);
+                }
+                if (reducer.maxTravelTimes[destination] <= maxTripDuration) {
+                    travelTimesTable.set("travel_time_max", reducer.maxTravelTimes[destination]);
+                }
+            }
+        }
+
+        if (travelTimesTable.nRow() > 0) {
+            return travelTimesTable;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Travel times by number of rides give, next to the regular percentiles, the first percentile of the travel time
+     * using at most k rides for k = 0 (no transit) to maxRides. They come from the regular R5 search only.
+     */
+    private boolean isByRides() {
+        if (!routingProperties.travelTimesByRides || transitModes.isEmpty()) return false;
+
+        if (routingProperties.expandedTravelTimes || exact || adaptive || routingProperties.fareCalculator != null) {
+            LOG.warn("Travel times by number of rides are not available with expanded or exact travel times, " +
+                    "adaptive Monte Carlo draws, or fare calculators.");
+            return false;
+        }
+
+        return true;
+    }
+
+    private void populateResultsByRides(OneOriginResult travelTimeResults, PercentileTravelTimeReducer[] ridesReducers,
+                                        RDataFrame travelTimesTable) {
+        for (int destination = 0; destination < travelTimeResults.travelTimes.nPoints; destination++) {
+            if (travelTimeResults.travelTimes.getValues()[0][destination] <= maxTripDuration) {
+                travelTimesTable.append();
+                travelTimesTable.set("to_id", toIds[destination]);
+
+                for (int p = 0; p < this.routingProperties.percentiles.length; p++) {
+                    int tt = travelTimeResults.travelTimes.getValues()[p][destination];
+                    if (tt <= maxTripDuration) {
+                        travelTimesTable.set("travel_time_p" + String.format("%02d", this.routingProperties.percentiles[p]), tt);
+                    }
+                }
+
+                // reruns with fewer rides draw other frequency offsets, so a travel time is never reported lower
+                // than the one with more rides, and the last one is the main search's
+                int minTravelTime = 0;
+                for (int rides = ridesReducers.length - 1; rides >= 0; rides--) {
+                    int tt = Math.max(ridesReducers[rides].travelTimesSeconds[0][destination], minTravelTime);
+                    minTravelTime = tt;
+                    if (tt != Integer.MAX_VALUE) {
+                        travelTimesTable.set("travel_time_rides_" + rides, tt / 60);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adaptive Monte Carlo only makes a difference on networks with frequency-based GTFS, the only ones where
+     * travel times vary between draws.
+     */
+    private boolean isAdaptive() {
+        return routingProperties.adaptiveTolerance > 0 &&
+                !routingProperties.expandedTravelTimes &&
+                transportNetwork.transitLayer.hasFrequencies;
+    }
+
+    /**
+     * Runs Monte Carlo draws in batches, refining the percentile estimates of every destination after each batch.
+     * Routing stops as soon as no reached estimate changes by more than the tolerance, or when the total number of
+     * draws reaches numberOfMonteCarloDraws. The street access search is done once per origin, and every batch is a
+     * separate RAPTOR search with its own random offsets, so the total work scales with the number of draws actually
+     * needed by each origin.
+     */
+    private RDataFrame runAdaptiveProcess(int index) throws ParseException {
+        int drawsPerBatch = routingProperties.adaptiveDrawsPerBatch * routingProperties.timeWindowSize;
+
+        RegionalTask request = buildRegionalTask(index);
+        request.monteCarloDraws = drawsPerBatch;
+        // the reducer keeps its own estimates, so R5's per-percentile travel time arrays are not allocated
+        request.recordTimes = false;
+        AdaptiveTravelTimeReducer reducer = new AdaptiveTravelTimeReducer(request, transportNetwork, nDestinations);
+
+        int[] totalDraws = {drawsPerBatch};
+        int[][][] estimates = {null};
+
+        R5TravelTimeComputer computer = new R5TravelTimeComputer(request, transportNetwork);
+        computer.setTravelTimeReducer(reducer);
+        computer.setTransitBatchCondition(() -> {
+            int[][] previousTravelTimes = estimates[0];
+            estimates[0] = reducer.getPercentileTravelTimes();
+
+            if (totalDraws[0] >= routingProperties.numberOfMonteCarloDraws) return false;
+            if (previousTravelTimes != null) {
+                int maxChange = AdaptiveTravelTimeReducer.maxChange(previousTravelTimes, estimates[0]);
+                if (maxChange <= routingProperties.adaptiveTolerance) {
+                    LOG.debug("Origin {} converged after {} draws, {} estimates changed reachability in the last batch.",
+                            fromIds[index], totalDraws[0],
+                            AdaptiveTravelTimeReducer.countReachabilityChanges(previousTravelTimes, estimates[0]));
+                    return false;
+                }
+            }
+
+            totalDraws[0] += drawsPerBatch;
+            return true;
+        });
+        computer.computeTravelTimes();
+
+        // without a transit search the batch condition is never evaluated, and the estimates come from street times
+        int[][] percentileTravelTimes = reducer.isUnvarying() ? reducer.getPercentileTravelTimes() : estimates[0];
+        int nDraws = reducer.isUnvarying() ? 1 : totalDraws[0];
+
+        if (travelTimeCache != null) {
+            travelTimeCache.put(index, percentileTravelTimes);
+        }
+
+        RDataFrame travelTimesTable = buildDataFrameStructure(fromIds[index], 10);
+        for (int destination = 0; destination < nDestinations; destination++) {
+            if (percentileTravelTimes[0][destination] <= maxTripDuration) {
+                travelTimesTable.append();
+                travelTimesTable.set("to_id", toIds[destination]);
+                travelTimesTable.set("n_draws", nDraws);
+
+                for (int p = 0; p < this.routingProperties.percentiles.length; p++) {
+                    int tt = percentileTravelTimes[p][destination];
+                    if (tt <= maxTripDuration) {
+                        travelTimesTable.set("travel_time_p" + String.format("%02d", this.routingProperties.percentiles[p]), tt);
+                    }
+                }
+            }
+        }
+
+        if (travelTimesTable.nRow() > 0) {
+            return travelTimesTable;
+        } else {
+            return null;
+        }
+    }
+
+    private RDataFrame runStreetOnlyProcess(int index) throws ParseException {
+        ProfileRequest request = new ProfileRequest();
+        initalizeRequest(index, request);
+
+        int[] travelTimesSeconds = streetTravelTimes.get();
+        StreetTravelTimeComputer computer = new StreetTravelTimeComputer(request, transportNetwork, destinationPoints[0]);
+        if (!computer.computeTravelTimes(travelTimesSeconds)) {
+            return null;
+        }
+
+        RDataFrame travelTimesTable = buildDataFrameStructure(fromIds[index], 10);
+        int[] cachedTravelTimes = travelTimeCache != null ? new int[nDestinations] : null;
+        for (int destination = 0; destination < nDestinations; destination++) {
+            int tt = Utils.getTravelTimeMinutes(travelTimesSeconds[destination], maxTripDuration);
+            if (cachedTravelTimes != null) cachedTravelTimes[destination] = tt;
+            if (tt <= maxTripDuration) {
+                travelTimesTable.append();
+                travelTimesTable.set("to_id", toIds[destination]);
+
+                setUnvaryingTravelTime(travelTimesTable, tt);
+            }
+        }
+
+        if (cachedTravelTimes != null) {
+            travelTimeCache.putUnvarying(index, cachedTravelTimes);
+        }
+
+        if (travelTimesTable.nRow() > 0) {
+            return travelTimesTable;
+        } else {
+            return null;
+        }
+    }
+
+    // street travel times do not vary, so every percentile (and min / avg / max) has the same value
+    private void setUnvaryingTravelTime(RDataFrame travelTimesTable, int tt) {
+        for (int p : this.routingProperties.percentiles) {
+            travelTimesTable.set("travel_time_p" + String.format("%02d", p), tt);
+        }
+
+        if (exact) {
+            travelTimesTable.set("travel_time_min", tt);
+            travelTimesTable.set("travel_time_avg", tt);
+            travelTimesTable.set("travel_time_max", tt);
+        }
+    }
+
     private void populateDataFrame(OneOriginResult travelTimeResults, RDataFrame travelTimesTable) {
         if (this.routingProperties.expandedTravelTimes) {
             populateExpandedResults(travelTimeResults, travelTimesTable);
@@ -347,6 +657,22 @@ public class TravelTimeMatrixComputer extends R5DataFrameProcess {
                 String ps = String.format("%02d", p);
                 travelTimesTable.addIntegerColumn("travel_time_p" + ps, Integer.MAX_VALUE);
             }
+
+            if (adaptive) {
+                travelTimesTable.addIntegerColumn("n_draws", 0);
+            }
+
+            if (exact) {
+                travelTimesTable.addIntegerColumn("travel_time_min", Integer.MAX_VALUE);
+                travelTimesTable.addIntegerColumn("travel_time_avg", Integer.MAX_VALUE);
+                travelTimesTable.addIntegerColumn("travel_time_max", Integer.MAX_VALUE);
+            }
+
+            if (byRides) {
+                for (int rides = 0; rides <= this.routingProperties.maxRides; rides++) {
+                    travelTimesTable.addIntegerColumn("travel_time_rides_" + rides, Integer.MAX_VALUE);
+                }
+            }
         } else {
             // expanded travel time matrix, with minute by minute route information
             travelTimesTable.addStringColumn("departure_time", "");
@@ -380,7 +706,7 @@ public class TravelTimeMatrixComputer extends R5DataFrameProcess {
         request.percentiles = this.routingProperties.percentiles;
         request.includePathResults = this.routingProperties.expandedTravelTimes;
 
-        request.destinationPointSetKeys = this.opportunities;
+        request.destinationPointSetKeys = DESTINATION_POINT_SET_KEYS;
         request.destinationPointSets = this.destinationPoints;
 
         return request;
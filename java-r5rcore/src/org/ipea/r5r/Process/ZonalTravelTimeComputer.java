@@ -0,0 +1,219 @@
+package org.ipea.r5r.Process;
+
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.TLongIntMap;
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import org.ipea.r5r.RDataFrame;
+import org.ipea.r5r.RoutingProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Travel time matrix aggregated to zones. Every origin and destination belongs to a zone and has a weight (e.g.
+ * population), and for each pair of zones the result holds the weighted mean, minimum and maximum travel time over
+ * the reached point pairs, together with their count and total weight. Point pairs are weighted by the product of
+ * the origin and destination weights. Travel times are those of the first percentile, in minutes.
+ *
+ * Each thread accumulates into its own primitive hash map keyed by zone pair, and the maps are merged once all
+ * origins are done, so the point-level matrix is never stored.
+ */
+public class ZonalTravelTimeComputer extends R5DataFrameProcess {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ZonalTravelTimeComputer.class);
+
+    private static class ZonePairAccumulator {
+        private final TLongIntMap slots = new TLongIntHashMap(64, 0.5f, -1L, -1);
+
+        // zone pair of each slot, so that slots can be walked in order without iterating the hash map
+        private final TLongArrayList keys = new TLongArrayList();
+        private final TDoubleArrayList weightedSums = new TDoubleArrayList();
+        private final TDoubleArrayList weights = new TDoubleArrayList();
+        private final TIntArrayList counts = new TIntArrayList();
+        private final TIntArrayList minima = new TIntArrayList();
+        private final TIntArrayList maxima = new TIntArrayList();
+
+        private int slot(long key) {
+            int slot = slots.get(key);
+            if (slot == -1) {
+                slot = counts.size();
+                slots.put(key, slot);
+                keys.add(key);
+                weightedSums.add(0.0);
+                weights.add(0.0);
+                counts.add(0);
+                minima.add(Integer.MAX_VALUE);
+                maxima.add(Integer.MIN_VALUE);
+            }
+            return slot;
+        }
+
+        void add(long key, int travelTime, double weight) {
+            add(key, travelTime * weight, weight, 1, travelTime, travelTime);
+        }
+
+        void add(long key, double weightedSum, double weight, int count, int min, int max) {
+            int slot = slot(key);
+            weightedSums.setQuick(slot, weightedSums.getQuick(slot) + weightedSum);
+            weights.setQuick(slot, weights.getQuick(slot) + weight);
+            counts.setQuick(slot, counts.getQuick(slot) + count);
+            minima.setQuick(slot, Math.min(minima.getQuick(slot), min));
+            maxima.setQuick(slot, Math.max(maxima.getQuick(slot), max));
+        }
+
+        void addAll(ZonePairAccumulator other) {
+            for (int i = 0; i < other.counts.size(); i++) {
+                add(other.keys.get(i), other.weightedSums.getQuick(i), other.weights.getQuick(i),
+                        other.counts.getQuick(i), other.minima.getQuick(i), other.maxima.getQuick(i));
+            }
+        }
+    }
+
+    private String[] originZones;
+    private double[] originWeights;
+    private String[] destinationZones;
+    private double[] destinationWeights;
+
+    private int[] originZoneIndex;
+    private int[] destinationZoneIndex;
+    private List<String> originZoneIds;
+    private List<String> destinationZoneIds;
+
+    // created anew on every run, because pool threads outlive the run
+    private ConcurrentLinkedQueue<ZonePairAccumulator> accumulators;
+    private ThreadLocal<ZonePairAccumulator> accumulator;
+
+    public ZonalTravelTimeComputer(ForkJoinPool threadPool, RoutingProperties routingProperties) {
+        super(threadPool, routingProperties);
+    }
+
+    public void setOriginZones(String[] originZones, double[] originWeights) {
+        this.originZones = originZones;
+        this.originWeights = originWeights;
+    }
+
+    public void setDestinationZones(String[] destinationZones, double[] destinationWeights) {
+        this.destinationZones = destinationZones;
+        this.destinationWeights = destinationWeights;
+    }
+
+    @Override
+    protected boolean isOneToOne() {
+        return false;
+    }
+
+    @Override
+    public RDataFrame run() throws ExecutionException, InterruptedException {
+        if (originZones.length != nOrigins || originWeights.length != nOrigins ||
+                destinationZones.length != nDestinations || destinationWeights.length != nDestinations) {
+            throw new IllegalArgumentException("Zones and weights must be given for every origin and destination.");
+        }
+
+        originZoneIds = new ArrayList<>();
+        originZoneIndex = indexZones(originZones, originZoneIds);
+        destinationZoneIds = new ArrayList<>();
+        destinationZoneIndex = indexZones(destinationZones, destinationZoneIds);
+
+        ConcurrentLinkedQueue<ZonePairAccumulator> partials = new ConcurrentLinkedQueue<>();
+        accumulators = partials;
+        accumulator = ThreadLocal.withInitial(() -> {
+            ZonePairAccumulator zonePairAccumulator = new ZonePairAccumulator();
+            partials.add(zonePairAccumulator);
+            return zonePairAccumulator;
+        });
+
+        // every origin returns null, results are kept in the accumulators
+        super.run();
+
+        LOG.info("Aggregating results by zone...");
+        ZonePairAccumulator merged = new ZonePairAccumulator();
+        for (ZonePairAccumulator partial : accumulators) merged.addAll(partial);
+        accumulators = null;
+        accumulator = null;
+
+        // slots are in the order threads first reached each pair, so rows are sorted by origin and destination zone,
+        // in the order zones first appear in the input
+        long[] sortedKeys = merged.keys.toArray();
+        Arrays.sort(sortedKeys);
+
+        int nPairs = sortedKeys.length;
+        RDataFrame zonalTable = buildDataFrameStructure("", nPairs);
+        for (long key : sortedKeys) {
+            int i = merged.slots.get(key);
+            double weight = merged.weights.getQuick(i);
+
+            zonalTable.append();
+            zonalTable.set("from_zone", originZoneIds.get((int) (key >>> 32)));
+            zonalTable.set("to_zone", destinationZoneIds.get((int) key));
+            zonalTable.set("n_pairs", merged.counts.getQuick(i));
+            zonalTable.set("weight", weight);
+            if (weight > 0) {
+                zonalTable.set("travel_time_mean", merged.weightedSums.getQuick(i) / weight);
+            }
+            zonalTable.set("travel_time_min", merged.minima.getQuick(i));
+            zonalTable.set("travel_time_max", merged.maxima.getQuick(i));
+        }
+
+        LOG.info(" DONE!");
+        return zonalTable;
+    }
+
+    private static int[] indexZones(String[] zones, List<String> zoneIds) {
+        TObjectIntMap<String> zoneIndex = new TObjectIntHashMap<>(16, 0.5f, -1);
+        int[] index = new int[zones.length];
+        for (int i = 0; i < zones.length; i++) {
+            int zone = zoneIndex.get(zones[i]);
+            if (zone == -1) {
+                zone = zoneIds.size();
+                zoneIndex.put(zones[i], zone);
+                zoneIds.add(zones[i]);
+            }
+            index[i] = zone;
+        }
+        return index;
+    }
+
+    @Override
+    protected RDataFrame runProcess(int index) throws ParseException {
+        int[] travelTimesSeconds = computePercentileTravelTimes(index)[0];
+
+        ZonePairAccumulator zonePairAccumulator = accumulator.get();
+        long fromZone = ((long) originZoneIndex[index]) << 32;
+        double originWeight = originWeights[index];
+
+        for (int d = 0; d < nDestinations; d++) {
+            int travelTime = travelTimesSeconds[d];
+            if (travelTime == Integer.MAX_VALUE) continue;
+
+            zonePairAccumulator.add(fromZone | destinationZoneIndex[d], travelTime / 60, originWeight * destinationWeights[d]);
+        }
+
+        return null;
+    }
+
+    @Override
+    protected RDataFrame buildDataFrameStructure(String fromId, int nRows) {
+        // Build return table
+        RDataFrame zonalTable = new RDataFrame(nRows);
+        zonalTable.addStringColumn("from_zone", fromId);
+        zonalTable.addStringColumn("to_zone", "");
+        zonalTable.addIntegerColumn("n_pairs", 0);
+        zonalTable.addDoubleColumn("weight", 0.0);
+        zonalTable.addDoubleColumn("travel_time_mean", Double.NaN);
+        zonalTable.addIntegerColumn("travel_time_min", 0);
+        zonalTable.addIntegerColumn("travel_time_max", 0);
+
+        return zonalTable;
+    }
+}
@@ -0,0 +1,118 @@
+package org.ipea.r5r.R5;
+
+import com.conveyal.r5.analyst.cluster.AnalysisWorkerTask;
+import com.conveyal.r5.transit.TransportNetwork;
+
+import java.util.Arrays;
+
+/**
+ * Counts the travel times of successive batches of Monte Carlo draws for each destination, so that percentile
+ * estimates can be refined batch by batch until they stop changing. Travel times are counted in one minute bins up to
+ * the maximum trip duration, plus a count of draws that did not reach the destination within it, which gives the same
+ * percentiles in minutes as sorting every draw, with memory that does not grow with the number of draws.
+ */
+public class AdaptiveTravelTimeReducer extends R5RTravelTimeReducer {
+
+    private final int[] percentiles;
+
+    // travel time counts by minute, allocated for the targets reached at least once
+    private final int[][] histograms;
+    // number of draws recorded for each target, reached or not
+    private final int[] nDraws;
+
+    // true while every target has been reached by street only, i.e. the transit search was skipped
+    private boolean unvarying = true;
+
+    public AdaptiveTravelTimeReducer(AnalysisWorkerTask task, TransportNetwork network, int nTargets) {
+        super(task, network, nTargets);
+        this.percentiles = task.percentiles;
+
+        histograms = new int[nTargets][];
+        nDraws = new int[nTargets];
+    }
+
+    @Override
+    protected void recordTarget(int target, int[] travelTimesSeconds) {
+        if (travelTimesSeconds.length > 1) unvarying = false;
+
+        for (int travelTime : travelTimesSeconds) {
+            if (travelTime == UNREACHED) continue;
+
+            int minutes = travelTime / 60;
+            if (minutes >= maxTripDurationMinutes) continue;
+
+            if (histograms[target] == null) {
+                histograms[target] = new int[maxTripDurationMinutes];
+            }
+            histograms[target][minutes]++;
+        }
+        nDraws[target] += travelTimesSeconds.length;
+    }
+
+    /**
+     * Street-only results do not vary between draws, so there is nothing to refine.
+     */
+    public boolean isUnvarying() {
+        return unvarying;
+    }
+
+    /**
+     * Current percentile estimates in minutes, indexed by percentile and then by target.
+     */
+    public int[][] getPercentileTravelTimes() {
+        int[][] percentileTravelTimes = new int[percentiles.length][nTargets];
+        for (int[] travelTimes : percentileTravelTimes) Arrays.fill(travelTimes, UNREACHED);
+
+        for (int target = 0; target < nTargets; target++) {
+            int[] histogram = histograms[target];
+            if (histogram == null) continue;
+
+            for (int p = 0; p < percentiles.length; p++) {
+                // draws that did not reach the target sort after every bin, so a rank past the bins stays unreached
+                int rank = percentileIndex(nDraws[target], percentiles[p]);
+                int count = 0;
+                for (int minutes = 0; minutes < histogram.length; minutes++) {
+                    count += histogram[minutes];
+                    if (count > rank) {
+                        percentileTravelTimes[p][target] = minutes;
+                        break;
+                    }
+                }
+            }
+        }
+
+        return percentileTravelTimes;
+    }
+
+    /**
+     * Largest change in minutes between two sets of percentile estimates, over the estimates that are reached in
+     * both. A destination becoming reachable or unreachable at a percentile has no size in minutes, and can keep
+     * flipping for destinations close to the maximum trip duration, so flips are counted separately by
+     * countReachabilityChanges instead of blocking convergence.
+     */
+    public static int maxChange(int[][] previous, int[][] current) {
+        int maxChange = 0;
+        for (int p = 0; p < current.length; p++) {
+            for (int target = 0; target < current[p].length; target++) {
+                int a = previous[p][target];
+                int b = current[p][target];
+                if (a == UNREACHED || b == UNREACHED) continue;
+                maxChange = Math.max(maxChange, Math.abs(a - b));
+            }
+        }
+        return maxChange;
+    }
+
+    /**
+     * Number of percentile estimates that became reachable or unreachable between two sets of estimates.
+     */
+    public static int countReachabilityChanges(int[][] previous, int[][] current) {
+        int nChanges = 0;
+        for (int p = 0; p < current.length; p++) {
+            for (int target = 0; target < current[p].length; target++) {
+                if ((previous[p][target] == UNREACHED) != (current[p][target] == UNREACHED)) nChanges++;
+            }
+        }
+        return nChanges;
+    }
+}
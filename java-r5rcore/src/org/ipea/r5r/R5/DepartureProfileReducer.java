@@ -0,0 +1,87 @@
+package org.ipea.r5r.R5;
+
+import com.conveyal.r5.analyst.cluster.AnalysisWorkerTask;
+import com.conveyal.r5.transit.TransportNetwork;
+
+import java.util.Arrays;
+
+/**
+ * Summarizes the travel times to each destination by departure minute, keeping the minimum or the median of the
+ * Monte Carlo draws of each minute. Profiles are stored in minutes, in a flat short array with one block of
+ * timeWindowSize values per target; UNREACHED_MINUTE marks minutes without a trip within the maximum trip duration.
+ *
+ * R5's range-RAPTOR iterates from the last departure minute of the window to the first, with all draws of a minute
+ * in consecutive iterations, so the first block of iterations belongs to the last minute.
+ */
+public class DepartureProfileReducer extends R5RTravelTimeReducer {
+
+    public static final short UNREACHED_MINUTE = -1;
+
+    public enum Stat { MIN, MEDIAN }
+
+    private final Stat stat;
+    private final int timeWindowSize;
+    private final int maxTripDurationSeconds;
+
+    public final short[] profiles;
+    public final boolean[] reached;
+
+    public DepartureProfileReducer(AnalysisWorkerTask task, TransportNetwork network, int nTargets, Stat stat) {
+        super(task, network, nTargets);
+        this.stat = stat;
+        this.timeWindowSize = (task.toTime - task.fromTime) / 60;
+        this.maxTripDurationSeconds = maxTripDurationMinutes * 60;
+
+        profiles = new short[nTargets * timeWindowSize];
+        Arrays.fill(profiles, UNREACHED_MINUTE);
+        reached = new boolean[nTargets];
+    }
+
+    public int getTimeWindowSize() {
+        return timeWindowSize;
+    }
+
+    @Override
+    protected void recordTarget(int target, int[] travelTimesSeconds) {
+        int offset = target * timeWindowSize;
+
+        if (travelTimesSeconds.length == 1) {
+            // street-only travel, the same for every departure minute
+            short travelTime = toMinutes(travelTimesSeconds[0]);
+            if (travelTime != UNREACHED_MINUTE) {
+                Arrays.fill(profiles, offset, offset + timeWindowSize, travelTime);
+                reached[target] = true;
+            }
+            return;
+        }
+
+        int drawsPerMinute = travelTimesSeconds.length / timeWindowSize;
+        int[] draws = new int[drawsPerMinute];
+
+        for (int minute = 0; minute < timeWindowSize; minute++) {
+            int firstIteration = (timeWindowSize - 1 - minute) * drawsPerMinute;
+
+            int travelTime;
+            if (drawsPerMinute == 1) {
+                travelTime = travelTimesSeconds[firstIteration];
+            } else if (stat == Stat.MIN) {
+                travelTime = Integer.MAX_VALUE;
+                for (int i = 0; i < drawsPerMinute; i++) {
+                    travelTime = Math.min(travelTime, travelTimesSeconds[firstIteration + i]);
+                }
+            } else {
+                System.arraycopy(travelTimesSeconds, firstIteration, draws, 0, drawsPerMinute);
+                int[] sortedDraws = sortedCopy(draws);
+                travelTime = sortedDraws[percentileIndex(drawsPerMinute, 50)];
+            }
+
+            short travelTimeMinutes = toMinutes(travelTime);
+            profiles[offset + minute] = travelTimeMinutes;
+            if (travelTimeMinutes != UNREACHED_MINUTE) reached[target] = true;
+        }
+    }
+
+    private short toMinutes(int travelTimeSeconds) {
+        return travelTimeSeconds < maxTripDurationSeconds ? (short) (travelTimeSeconds / 60) : UNREACHED_MINUTE;
+    }
+}
@@ -0,0 +1,58 @@
+package org.ipea.r5r.R5;
+
+import com.conveyal.r5.analyst.cluster.AnalysisWorkerTask;
+import com.conveyal.r5.transit.TransportNetwork;
+import org.ipea.r5r.Utils.Utils;
+
+import java.util.Arrays;
+
+/**
+ * Summarizes the per-minute travel time profile of schedule-based networks, where each departure minute has exactly
+ * one RAPTOR iteration and there are no Monte Carlo draws. For each destination it records the minimum, average and
+ * maximum travel time over the time window, and the requested percentiles, all in minutes.
+ */
+public class ExactTravelTimeReducer extends R5RTravelTimeReducer {
+
+    private final int[] percentiles;
+
+    public final int[][] percentileTravelTimes;
+    public final int[] minTravelTimes;
+    public final int[] avgTravelTimes;
+    public final int[] maxTravelTimes;
+
+    public ExactTravelTimeReducer(AnalysisWorkerTask task, TransportNetwork network, int nTargets) {
+        super(task, network, nTargets);
+        this.percentiles = task.percentiles;
+
+        percentileTravelTimes = new int[percentiles.length][nTargets];
+        minTravelTimes = new int[nTargets];
+        avgTravelTimes = new int[nTargets];
+        maxTravelTimes = new int[nTargets];
+
+        for (int[] travelTimes : percentileTravelTimes) Arrays.fill(travelTimes, UNREACHED);
+        Arrays.fill(minTravelTimes, UNREACHED);
+        Arrays.fill(avgTravelTimes, UNREACHED);
+        Arrays.fill(maxTravelTimes, UNREACHED);
+    }
+
+    @Override
+    protected void recordTarget(int target, int[] travelTimesSeconds) {
+        int nIterations = travelTimesSeconds.length;
+        int[] sortedTravelTimes = sortedCopy(travelTimesSeconds);
+
+        for (int p = 0; p < percentiles.length; p++) {
+            int travelTime = sortedTravelTimes[percentileIndex(nIterations, percentiles[p])];
+            percentileTravelTimes[p][target] = Utils.getTravelTimeMinutes(travelTime, maxTripDurationMinutes);
+        }
+
+        minTravelTimes[target] = Utils.getTravelTimeMinutes(sortedTravelTimes[0], maxTripDurationMinutes);
+        maxTravelTimes[target] = Utils.getTravelTimeMinutes(sortedTravelTimes[nIterations - 1], maxTripDurationMinutes);
+
+        // the average is only defined if the destination is reached in every minute of the window
+        if (sortedTravelTimes[nIterations - 1] != UNREACHED) {
+            long sum = 0;
+            for (int travelTime : sortedTravelTimes) sum += travelTime;
+            avgTravelTimes[target] = Utils.getTravelTimeMinutes((int) (sum / nIterations), maxTripDurationMinutes);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package org.ipea.r5r.R5;
+
+import com.conveyal.r5.analyst.cluster.AnalysisWorkerTask;
+import com.conveyal.r5.transit.TransportNetwork;
+
+import java.util.Arrays;
+
+/**
+ * Reduces the travel times to each destination to the requested percentiles, kept in seconds so that decay
+ * functions can be evaluated at full precision. Travel times that reach the maximum trip duration are unreachable.
+ */
+public class PercentileTravelTimeReducer extends R5RTravelTimeReducer {
+
+    private final int[] percentiles;
+    private final int maxTripDurationSeconds;
+
+    // position of each target in the results, or -1 for targets that are not kept; null when all are kept
+    private final int[] slots;
+
+    // indexed by percentile and then by target (or by position in the kept targets)
+    public final int[][] travelTimesSeconds;
+
+    public PercentileTravelTimeReducer(AnalysisWorkerTask task, TransportNetwork network, int nTargets) {
+        this(task, network, nTargets, null);
+    }
+
+    /**
+     * Only keeps the travel times to the given distinct targets, indexed by their position in the array instead of
+     * by target. Travel times to the other targets are dropped before being sorted.
+     */
+    public PercentileTravelTimeReducer(AnalysisWorkerTask task, TransportNetwork network, int nTargets, int[] targets) {
+        super(task, network, nTargets);
+        this.percentiles = task.percentiles;
+        this.maxTripDurationSeconds = maxTripDurationMinutes * 60;
+
+        if (targets != null) {
+            slots = new int[nTargets];
+            Arrays.fill(slots, -1);
+            for (int i = 0; i < targets.length; i++) slots[targets[i]] = i;
+        } else {
+            slots = null;
+        }
+
+        travelTimesSeconds = new int[percentiles.length][targets != null ? targets.length : nTargets];
+        for (int[] travelTimes : travelTimesSeconds) Arrays.fill(travelTimes, UNREACHED);
+    }
+
+    @Override
+    protected void recordTarget(int target, int[] travelTimesSeconds) {
+        int slot = slots != null ? slots[target] : target;
+        if (slot == -1) return;
+
+        int[] sortedTravelTimes = sortedCopy(travelTimesSeconds);
+
+        for (int p = 0; p < percentiles.length; p++) {
+            int travelTime = sortedTravelTimes[percentileIndex(sortedTravelTimes.length, percentiles[p])];
+            this.travelTimesSeconds[p][slot] = travelTime < maxTripDurationSeconds ? travelTime : UNREACHED;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.ipea.r5r.R5;
+
+import com.conveyal.r5.analyst.TravelTimeReducer;
+import com.conveyal.r5.analyst.cluster.AnalysisWorkerTask;
+import com.conveyal.r5.transit.TransportNetwork;
+
+import java.util.Arrays;
+
+/**
+ * Base class for reducers that take the per-iteration travel times at each destination straight from R5's
+ * propagation and summarize them in r5r code, instead of going through R5's percentile and accessibility results.
+ * Install one in a R5TravelTimeComputer with setTravelTimeReducer, and read the results from the subclass after
+ * computeTravelTimes returns.
+ *
+ * Travel times arriving here are in seconds, one per RAPTOR iteration (departure minute and Monte Carlo draw), or a
+ * single value when the travel time does not vary (street-only travel).
+ */
+public abstract class R5RTravelTimeReducer extends TravelTimeReducer {
+
+    public static final int UNREACHED = Integer.MAX_VALUE;
+
+    protected final int nTargets;
+    protected final int maxTripDurationMinutes;
+
+    private final int[] unvaryingTravelTime = new int[1];
+    private int[] sortBuffer = new int[0];
+
+    public R5RTravelTimeReducer(AnalysisWorkerTask task, TransportNetwork network, int nTargets) {
+        super(task, network);
+        this.nTargets = nTargets;
+        this.maxTripDurationMinutes = task.maxTripDurationMinutes;
+    }
+
+    @Override
+    public void recordUnvaryingTravelTimeAtTarget(int target, int travelTimeSeconds) {
+        unvaryingTravelTime[0] = travelTimeSeconds;
+        recordTarget(target, unvaryingTravelTime);
+    }
+
+    @Override
+    public void recordTravelTimesForTarget(int target, int[] travelTimesForTargetSeconds) {
+        recordTarget(target, travelTimesForTargetSeconds);
+    }
+
+    /**
+     * Receives the travel times in seconds to one target. The array belongs to the caller and may be reused after
+     * this method returns, so implementations must copy anything they want to keep.
+     */
+    protected abstract void recordTarget(int target, int[] travelTimesSeconds);
+
+    /**
+     * Returns a sorted copy of the travel times, in a buffer that is reused across targets.
+     */
+    protected int[] sortedCopy(int[] travelTimesSeconds) {
+        return sortedCopy(travelTimesSeconds, travelTimesSeconds.length);
+    }
+
+    /**
+     * Same as above, for the first n travel times of the array.
+     */
+    protected int[] sortedCopy(int[] travelTimesSeconds, int n) {
+        if (sortBuffer.length != n) {
+            sortBuffer = new int[n];
+        }
+        System.arraycopy(travelTimesSeconds, 0, sortBuffer, 0, n);
+        Arrays.sort(sortBuffer);
+        return sortBuffer;
+    }
+
+    /**
+     * Index of a percentile in a sorted array, using the nearest-rank definition: the smallest value such that at
+     * least the given percentage of the values are less than or equal to it. No interpolation is done, so the result
+     * is always one of the observed travel times.
+     */
+    public static int percentileIndex(int nElements, int percentile) {
+        return Math.max((int) Math.ceil(percentile / 100.0 * nElements) - 1, 0);
+    }
+}
@@ -23,6 +23,7 @@ import org.slf4j.LoggerFactory;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.BooleanSupplier;
 import java.util.function.IntFunction;
 import java.util.stream.Collectors;
 
@@ -36,6 +37,15 @@ public class R5TravelTimeComputer extends TravelTimeComputer {
     private final AnalysisWorkerTask request;
     private final TransportNetwork network;
 
+    // optional replacement for R5's TravelTimeReducer, see R5RTravelTimeReducer
+    private TravelTimeReducer travelTimeReducer = null;
+
+    // optional reducers for travel times using at most k transit rides, indexed by k
+    private TravelTimeReducer[] maxRidesReducers = null;
+
+    // optional condition for running further batches of transit searches, see setTransitBatchCondition
+    private BooleanSupplier runAnotherBatch = null;
+
     /**
      * Constructor.
      *
@@ -48,6 +58,34 @@ public class R5TravelTimeComputer extends TravelTimeComputer {
         this.network = network;
     }
 
+    /**
+     * Use a custom reducer to summarize the travel times to each destination, instead of R5's default one.
+     * The reducer must have been built for the same request and network as this computer.
+     */
+    public void setTravelTimeReducer(TravelTimeReducer travelTimeReducer) {
+        this.travelTimeReducer = travelTimeReducer;
+    }
+
+    /**
+     * Also compute the travel times using at most k transit rides, for every k with a reducer in the array (k = 0
+     * meaning no transit). The street access search is done once and shared by all k; the transit search and the
+     * propagation to destinations are repeated for each k, with the request's maxRides temporarily set to k.
+     * Not available with in-routing fare calculators, which use a different router.
+     */
+    public void setMaxRidesTravelTimeReducers(TravelTimeReducer[] maxRidesReducers) {
+        this.maxRidesReducers = maxRidesReducers;
+    }
+
+    /**
+     * After the first transit search and propagation, keep running transit searches for as long as the condition is
+     * true, each with new random offsets for frequency-based routes. Every batch reuses the street access search and
+     * streams its travel times into the same reducer, which should keep its own results across batches. The condition
+     * is only evaluated when a transit search was done.
+     */
+    public void setTransitBatchCondition(BooleanSupplier runAnotherBatch) {
+        this.runAnotherBatch = runAnotherBatch;
+    }
+
     /**
      * The TravelTimeComputer can make travel time grids, accessibility indicators, or (eventually) both depending
      * on what's in the task it's given. TODO factor out each major step of this process into private methods.
@@ -67,7 +105,8 @@ public class R5TravelTimeComputer extends TravelTimeComputer {
 
         // Create an object that accumulates travel times at each destination, simplifying them into percentiles.
         // TODO Create and encapsulate this object within the propagator.
-        TravelTimeReducer travelTimeReducer = new TravelTimeReducer(request, network);
+        TravelTimeReducer travelTimeReducer = this.travelTimeReducer != null ?
+                this.travelTimeReducer : new TravelTimeReducer(request, network);
 
         // Find the set of destinations for a travel time calculation, not yet linked to the street network, and with
         // no associated opportunities. By finding the extents and destinations up front, we ensure the exact same
@@ -262,6 +301,11 @@ public class R5TravelTimeComputer extends TravelTimeComputer {
             // The origin point was not even linked to the street network.
             // Calling finish() before streaming in any travel times to destinations is designed to produce the right result.
             LOG.info("Origin point was outside the street network. Skipping routing and propagation, and returning default result.");
+            if (maxRidesReducers != null) {
+                for (TravelTimeReducer reducer : maxRidesReducers) {
+                    if (reducer != null) reducer.finish();
+                }
+            }
             return travelTimeReducer.finish();
         }
 
@@ -269,14 +313,12 @@ public class R5TravelTimeComputer extends TravelTimeComputer {
         // were reached, return the non-transit grid as the final result.
         if (request.transitModes.isEmpty() || bestAccessOptions.streetTimesAndModes.isEmpty()) {
             LOG.info("Skipping transit search. No transit stops were reached or no transit modes were selected.");
-            int nTargets =  nonTransitTravelTimesToDestinations.size();
-            if (request instanceof RegionalTask && ((RegionalTask) request).oneToOne) nTargets = 1;
-            for (int target = 0; target < nTargets; target++) {
-                // TODO: pull this loop out into a method: travelTimeReducer.recordPointSetTimes(accessTimes)
-                final int travelTimeSeconds = nonTransitTravelTimesToDestinations.getTravelTimeToPoint(target);
-                travelTimeReducer.recordUnvaryingTravelTimeAtTarget(target, travelTimeSeconds);
+            if (maxRidesReducers != null) {
+                for (TravelTimeReducer reducer : maxRidesReducers) {
+                    if (reducer != null) recordNonTransitTravelTimes(reducer, nonTransitTravelTimesToDestinations);
+                }
             }
-            return travelTimeReducer.finish();
+            return recordNonTransitTravelTimes(travelTimeReducer, nonTransitTravelTimesToDestinations);
         }
 
         // II. Transit Routing ========================================================================================
@@ -355,8 +397,93 @@ public class R5TravelTimeComputer extends TravelTimeComputer {
             }
         }
 
-        return perTargetPropagater.propagate();
+        OneOriginResult result = perTargetPropagater.propagate();
+
+        if (runAnotherBatch != null && worker != null) {
+            while (runAnotherBatch.getAsBoolean()) {
+                int[][] batchTravelTimesToStops =
+                        new FastRaptorWorker(network.transitLayer, request, bestAccessOptions.getTimes()).route();
+                propagate(destinations, egressStreetModes, batchTravelTimesToStops,
+                        nonTransitTravelTimesToDestinations, travelTimeReducer);
+            }
+        }
+
+        if (maxRidesReducers != null) {
+            propagateByMaxRides(destinations, egressStreetModes, bestAccessOptions, nonTransitTravelTimesToDestinations,
+                    transitTravelTimesToStops);
+        }
+
+        return result;
+
+    }
+
+    private OneOriginResult recordNonTransitTravelTimes(TravelTimeReducer reducer, PointSetTimes nonTransitTravelTimes) {
+        int nTargets =  nonTransitTravelTimes.size();
+        if (request instanceof RegionalTask && ((RegionalTask) request).oneToOne) nTargets = 1;
+        for (int target = 0; target < nTargets; target++) {
+            final int travelTimeSeconds = nonTransitTravelTimes.getTravelTimeToPoint(target);
+            reducer.recordUnvaryingTravelTimeAtTarget(target, travelTimeSeconds);
+        }
+        return reducer.finish();
+    }
+
+    private void propagate(PointSet destinations, EnumSet<StreetMode> egressStreetModes, int[][] transitTravelTimesToStops,
+                           PointSetTimes nonTransitTravelTimes, TravelTimeReducer reducer) {
+        PerTargetPropagater perTargetPropagater = new PerTargetPropagater(
+                destinations,
+                network.streetLayer,
+                egressStreetModes,
+                request,
+                transitTravelTimesToStops,
+                nonTransitTravelTimes.travelTimes
+        );
+        perTargetPropagater.travelTimeReducer = reducer;
+        perTargetPropagater.propagate();
+    }
+
+    /**
+     * FastRaptorWorker only returns the best times over all rounds, so the best times within k rides are found by
+     * routing again with at most k rounds, reusing the access times to stops and the non-transit travel times.
+     * The main search already used request.maxRides rounds, so its travel times to stops are reused for the last k.
+     *
+     * FastRaptorWorker draws its random frequency offsets internally and R5 does not allow seeding them, so with
+     * frequency-based routes the reruns for smaller k use different draws than the main search. Callers should keep
+     * the results consistent, e.g. by never reporting a lower travel time for fewer rides (see
+     * TravelTimeMatrixComputer.populateResultsByRides).
+     */
+    private void propagateByMaxRides(PointSet destinations, EnumSet<StreetMode> egressStreetModes,
+                                     StreetTimesAndModes bestAccessOptions, PointSetTimes nonTransitTravelTimes,
+                                     int[][] mainTravelTimesToStops) {
+        if (request.inRoutingFareCalculator != null) {
+            throw new IllegalArgumentException("Travel times by number of rides are not available with fare calculators.");
+        }
+
+        int maxRides = request.maxRides;
+        try {
+            for (int rides = 0; rides < maxRidesReducers.length; rides++) {
+                TravelTimeReducer reducer = maxRidesReducers[rides];
+                if (reducer == null) continue;
 
+                if (rides == 0) {
+                    recordNonTransitTravelTimes(reducer, nonTransitTravelTimes);
+                    continue;
+                }
+
+                int[][] transitTravelTimesToStops;
+                if (rides >= maxRides) {
+                    transitTravelTimesToStops = mainTravelTimesToStops;
+                } else {
+                    request.maxRides = rides;
+                    transitTravelTimesToStops =
+                            new FastRaptorWorker(network.transitLayer, request, bestAccessOptions.getTimes()).route();
+                    request.maxRides = maxRides;
+                }
+
+                propagate(destinations, egressStreetModes, transitTravelTimesToStops, nonTransitTravelTimes, reducer);
+            }
+        } finally {
+            request.maxRides = maxRides;
+        }
     }
 
     /**
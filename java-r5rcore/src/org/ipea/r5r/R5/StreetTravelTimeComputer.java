@@ -0,0 +1,91 @@
+package org.ipea.r5r.R5;
+
+import com.conveyal.r5.analyst.PointSet;
+import com.conveyal.r5.api.util.LegMode;
+import com.conveyal.r5.profile.FastRaptorWorker;
+import com.conveyal.r5.profile.ProfileRequest;
+import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.streets.LinkedPointSet;
+import com.conveyal.r5.streets.PointSetTimes;
+import com.conveyal.r5.streets.StreetRouter;
+import com.conveyal.r5.transit.TransportNetwork;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import static com.conveyal.r5.profile.PerTargetPropagater.MM_PER_METER;
+
+/**
+ * Computes travel times from one origin to every destination using street modes only (walk, bike, car).
+ *
+ * Street-only travel times do not vary with departure time, so none of the RegionalTask, TravelTimeReducer and
+ * propagation machinery used by R5TravelTimeComputer is needed: this runs one StreetRouter search per direct mode and
+ * reads the destination times straight off the linked destination point set. Results are written into an array
+ * supplied by the caller, which is expected to be reused across origins processed by the same thread.
+ */
+public class StreetTravelTimeComputer {
+
+    public static final int UNREACHED = FastRaptorWorker.UNREACHED;
+
+    private final ProfileRequest request;
+    private final TransportNetwork network;
+    private final PointSet destinations;
+
+    public StreetTravelTimeComputer(ProfileRequest request, TransportNetwork network, PointSet destinations) {
+        this.request = request;
+        this.network = network;
+        this.destinations = destinations;
+    }
+
+    /**
+     * Fills travelTimesSeconds with the travel time in seconds to each destination, taking the fastest of the
+     * request's direct modes. Unreachable destinations are set to UNREACHED.
+     *
+     * @return false if the origin could not be linked to the street network with any mode
+     */
+    public boolean computeTravelTimes(int[] travelTimesSeconds) {
+        Arrays.fill(travelTimesSeconds, UNREACHED);
+
+        int walkSpeedMillimetersPerSecond = (int) (request.walkSpeed * MM_PER_METER);
+        boolean foundAnyOriginPoint = false;
+
+        EnumSet<StreetMode> directModes = LegMode.toStreetModeSet(request.directModes);
+        for (StreetMode directMode : directModes) {
+            StreetRouter sr = new StreetRouter(network.streetLayer);
+            sr.profileRequest = request;
+            sr.streetMode = directMode;
+            if (!sr.setOrigin(request.fromLat, request.fromLon)) {
+                continue;
+            }
+            foundAnyOriginPoint = true;
+
+            sr.timeLimitSeconds = request.maxTripDurationMinutes * FastRaptorWorker.SECONDS_PER_MINUTE;
+            sr.quantityToMinimize = StreetRouter.State.RoutingVariable.DURATION_SECONDS;
+            sr.route();
+            // same behaviour as R5TravelTimeComputer: allow the last stretch of a car or bike trip to be walked
+            if (directMode != StreetMode.WALK) {
+                sr.keepRoutingOnFoot();
+            }
+
+            int streetSpeedMillimetersPerSecond = (int) (request.getSpeedForMode(directMode) * 1000);
+            if (streetSpeedMillimetersPerSecond <= 0) {
+                throw new IllegalArgumentException("Speed of direct mode must be greater than 0.");
+            }
+
+            LinkedPointSet linkedDestinations = network.linkageCache.getLinkage(destinations, network.streetLayer, directMode);
+            PointSetTimes pointSetTimes = linkedDestinations.eval(
+                    sr::getTravelTimeToVertex,
+                    streetSpeedMillimetersPerSecond,
+                    walkSpeedMillimetersPerSecond,
+                    sr.getOriginSplit()
+            );
+
+            for (int d = 0; d < travelTimesSeconds.length; d++) {
+                int travelTime = pointSetTimes.getTravelTimeToPoint(d);
+                if (travelTime < travelTimesSeconds[d]) travelTimesSeconds[d] = travelTime;
+            }
+        }
+
+        return foundAnyOriginPoint;
+    }
+}
@@ -0,0 +1,113 @@
+package org.ipea.r5r.R5;
+
+import com.conveyal.r5.analyst.cluster.AnalysisWorkerTask;
+import com.conveyal.r5.transit.TransportNetwork;
+
+/**
+ * Keeps only the k destinations with the shortest travel times, ranked by the first requested percentile. The k
+ * best destinations seen so far are held in a bounded max-heap of primitive arrays, with the worst of them at the
+ * root, so each target is either rejected against the root or replaces it in O(log k).
+ *
+ * Targets whose fastest iteration is not better than the current k-th best are rejected without computing the
+ * percentile, as no percentile can be lower than the minimum.
+ */
+public class TopKTravelTimeReducer extends R5RTravelTimeReducer {
+
+    private final int percentile;
+    private final int maxTripDurationSeconds;
+
+    private final int k;
+    private final int[] heapTravelTimes;
+    private final int[] heapTargets;
+    private int size = 0;
+
+    public TopKTravelTimeReducer(AnalysisWorkerTask task, TransportNetwork network, int nTargets, int k) {
+        super(task, network, nTargets);
+        this.percentile = task.percentiles[0];
+        this.maxTripDurationSeconds = maxTripDurationMinutes * 60;
+
+        this.k = k;
+        this.heapTravelTimes = new int[k];
+        this.heapTargets = new int[k];
+    }
+
+    @Override
+    protected void recordTarget(int target, int[] travelTimesSeconds) {
+        int bound = size == k ? heapTravelTimes[0] : maxTripDurationSeconds;
+
+        int min = Integer.MAX_VALUE;
+        for (int travelTime : travelTimesSeconds) min = Math.min(min, travelTime);
+        if (min >= bound) return;
+
+        int travelTime;
+        if (travelTimesSeconds.length == 1) {
+            travelTime = min;
+        } else {
+            int[] sortedTravelTimes = sortedCopy(travelTimesSeconds);
+            travelTime = sortedTravelTimes[percentileIndex(sortedTravelTimes.length, percentile)];
+        }
+        if (travelTime >= bound) return;
+
+        if (size < k) {
+            heapTravelTimes[size] = travelTime;
+            heapTargets[size] = target;
+            siftUp(size++);
+        } else {
+            heapTravelTimes[0] = travelTime;
+            heapTargets[0] = target;
+            siftDown(0);
+        }
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (heapTravelTimes[parent] >= heapTravelTimes[i]) break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int largest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < size && heapTravelTimes[left] > heapTravelTimes[largest]) largest = left;
+            if (right < size && heapTravelTimes[right] > heapTravelTimes[largest]) largest = right;
+            if (largest == i) break;
+            swap(i, largest);
+            i = largest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int travelTime = heapTravelTimes[a];
+        heapTravelTimes[a] = heapTravelTimes[b];
+        heapTravelTimes[b] = travelTime;
+
+        int target = heapTargets[a];
+        heapTargets[a] = heapTargets[b];
+        heapTargets[b] = target;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Empties the heap into the given arrays, from the shortest to the longest travel time. Travel times are in
+     * seconds. Arrays must hold at least size() elements.
+     */
+    public void drainSorted(int[] targets, int[] travelTimesSeconds) {
+        for (int i = size - 1; i >= 0; i--) {
+            targets[i] = heapTargets[0];
+            travelTimesSeconds[i] = heapTravelTimes[0];
+
+            size--;
+            heapTravelTimes[0] = heapTravelTimes[size];
+            heapTargets[0] = heapTargets[size];
+            siftDown(0);
+        }
+    }
+}
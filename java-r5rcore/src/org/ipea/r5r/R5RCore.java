@@ -21,6 +21,7 @@ import org.ipea.r5r.Process.*;
 import org.ipea.r5r.Scenario.R5RShapefileLts;
 import org.ipea.r5r.Scenario.RoadCongestionOSM;
 import org.ipea.r5r.Scenario.SetLtsOsm;
+import org.ipea.r5r.Utils.ServiceCalendar;
 import org.ipea.r5r.Utils.Utils;
 import org.slf4j.LoggerFactory;
 
@@ -50,6 +51,14 @@ public class R5RCore {
 
     public final RDataFrame gtfsErrors;
 
+    // timing of each network build phase and entity counts, null when an existing network was loaded
+    public final RDataFrame networkBuildPhases;
+    public final RDataFrame networkEntityCounts;
+
+    // travel times of the last travel time matrix, kept only when caching is enabled
+    private boolean cacheTravelTimes = false;
+    private TravelTimeCache travelTimeCache = null;
+
     public double getWalkSpeed() {
         return this.routingProperties.walkSpeed;
     }
@@ -98,6 +107,16 @@ public class R5RCore {
         this.routingProperties.numberOfMonteCarloDraws = numberOfMonteCarloDraws;
     }
 
+    /**
+     * Run Monte Carlo draws in batches of drawsPerBatch per departure minute, stopping when no percentile estimate
+     * changes by more than toleranceMinutes between batches, or when numberOfMonteCarloDraws is reached.
+     * A tolerance of zero or less turns adaptive draws off.
+     */
+    public void setAdaptiveMonteCarlo(int drawsPerBatch, double toleranceMinutes) {
+        this.routingProperties.adaptiveDrawsPerBatch = Math.max(drawsPerBatch, 1);
+        this.routingProperties.adaptiveTolerance = toleranceMinutes;
+    }
+
     public void setPercentiles(int[] percentiles) {
         this.routingProperties.percentiles = percentiles;
     }
@@ -132,6 +151,28 @@ public class R5RCore {
         this.routingProperties.expandedTravelTimes = expandedTravelTimes;
     }
 
+    public void setExactTravelTimes(boolean exactTravelTimes) {
+        this.routingProperties.exactTravelTimes = exactTravelTimes;
+    }
+
+    public void setTravelTimesByRides(boolean travelTimesByRides) {
+        this.routingProperties.travelTimesByRides = travelTimesByRides;
+    }
+
+    /**
+     * When enabled, travelTimeMatrix() keeps a compact copy of its travel times, so that accessibilityFromCache()
+     * can compute accessibility for new opportunity layers without routing again. Unlike routing settings, this
+     * stays on until it is disabled, which also releases the cache.
+     */
+    public void setTravelTimeCaching(boolean cacheTravelTimes) {
+        this.cacheTravelTimes = cacheTravelTimes;
+        if (!cacheTravelTimes) this.travelTimeCache = null;
+    }
+
+    public boolean hasTravelTimeCache() {
+        return this.travelTimeCache != null;
+    }
+
     public void setSearchType(String searchType) {
         this.routingProperties.searchType = SearchType.valueOf(searchType);
     }
@@ -239,6 +280,15 @@ public class R5RCore {
     private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(R5RCore.class);
 
     public R5RCore(String dataFolder, boolean verbose, String nativeElevationFunction) throws Exception {
+        this(dataFolder, verbose, nativeElevationFunction, new String[0], new String[0]);
+    }
+
+    /**
+     * @param buildOptionNames names of network build options, such as "incremental_build"
+     * @param buildOptionValues values of the build options, in the same order as their names
+     */
+    public R5RCore(String dataFolder, boolean verbose, String nativeElevationFunction,
+                   String[] buildOptionNames, String[] buildOptionValues) throws Exception {
         if (verbose) {
             verboseMode();
         } else {
@@ -255,6 +305,9 @@ public class R5RCore {
 
         builder.useNativeElevation = !nativeElevationFunction.equals("NONE");
         builder.elevationCostFunction = nativeElevationFunction;
+        for (int i = 0; i < buildOptionNames.length; i++) {
+            builder.setBuildOption(buildOptionNames[i], buildOptionValues[i]);
+        }
 
         dataPath = dataFolder;
         Path path = Paths.get(dataFolder).toAbsolutePath().normalize();
@@ -262,6 +315,8 @@ public class R5RCore {
         TransportNetwork network = builder.checkAndLoadR5Network(path.toString());
         this.routingProperties = network == null ? null : new RoutingProperties(network);
         this.gtfsErrors = builder.gtfsErrors;
+        this.networkBuildPhases = builder.buildReport == null ? null : builder.buildReport.getPhases();
+        this.networkEntityCounts = builder.buildReport == null ? null : builder.buildReport.getEntityCounts();
     }
 
     // ---------------------------------------------------------------------------------------------------
@@ -393,7 +448,104 @@ public class R5RCore {
         travelTimeMatrixComputer.setDepartureDateTime(date, departureTime);
         travelTimeMatrixComputer.setTripDuration(maxWalkTime, maxBikeTime, maxCarTime, maxTripDuration);
 
+        // release the previous cache before routing, so that both are never held at the same time
+        this.travelTimeCache = null;
+        TravelTimeCache cache = null;
+        if (cacheTravelTimes && !routingProperties.expandedTravelTimes) {
+            cache = new TravelTimeCache(fromIds, fromLats, fromLons, toIds, toLats, toLons,
+                    routingProperties.percentiles, maxTripDuration);
+            travelTimeMatrixComputer.setTravelTimeCache(cache);
+        }
+
         RDataFrame out = travelTimeMatrixComputer.run();
+        this.travelTimeCache = cache;
+        this.routingProperties.reset();
+        return out;
+    }
+
+    /**
+     * Travel times for a list of origin-destination pairs: fromIds[i] to toIds[i]. Each distinct origin is routed
+     * once, and exactly the requested pairs are returned.
+     */
+    public RDataFrame travelTimeODPairs(String[] fromIds, double[] fromLats, double[] fromLons,
+                                        String[] toIds, double[] toLats, double[] toLons,
+                                        String directModes, String transitModes, String accessModes, String egressModes,
+                                        String date, String departureTime,
+                                        int maxWalkTime, int maxBikeTime, int maxCarTime, int maxTripDuration) throws ExecutionException, InterruptedException {
+
+        ODPairTravelTimeComputer odPairComputer = new ODPairTravelTimeComputer(this.r5rThreadPool, this.routingProperties);
+        odPairComputer.setODPairs(fromIds, fromLats, fromLons, toIds, toLats, toLons);
+        odPairComputer.setModes(directModes, accessModes, transitModes, egressModes);
+        odPairComputer.setDepartureDateTime(date, departureTime);
+        odPairComputer.setTripDuration(maxWalkTime, maxBikeTime, maxCarTime, maxTripDuration);
+
+        RDataFrame out = odPairComputer.run();
+        this.routingProperties.reset();
+        return out;
+    }
+
+    /**
+     * Computes travel time matrices for several departure dates. Dates are grouped by the set of GTFS services
+     * active on them, and routing is done once per group. The results of each group are then repeated for every
+     * date in it, identified by the "date" column.
+     */
+    public RDataFrame travelTimeMatrixMultiDate(String[] fromIds, double[] fromLats, double[] fromLons,
+                                                String[] toIds, double[] toLats, double[] toLons,
+                                                String directModes, String transitModes, String accessModes, String egressModes,
+                                                String[] dates, String departureTime,
+                                                int maxWalkTime, int maxBikeTime, int maxCarTime, int maxTripDuration) throws ExecutionException, InterruptedException {
+
+        // per-origin CSV files are named by origin only, so each set of services would overwrite the previous one,
+        // and results are written before the date column is added
+        if (Utils.saveOutputToCsv) {
+            throw new IllegalStateException("CSV output is not supported for multi-date travel time matrices.");
+        }
+
+        LinkedHashMap<BitSet, List<String>> serviceClasses =
+                ServiceCalendar.groupDatesByActiveServices(routingProperties.getTransportNetworkBase().transitLayer, dates);
+        LOG.info("{} departure dates grouped into {} sets of active services", dates.length, serviceClasses.size());
+
+        RDataFrame out = new RDataFrame();
+        for (List<String> serviceClass : serviceClasses.values()) {
+            TravelTimeMatrixComputer travelTimeMatrixComputer = new TravelTimeMatrixComputer(this.r5rThreadPool, this.routingProperties);
+            travelTimeMatrixComputer.setOrigins(fromIds, fromLats, fromLons);
+            travelTimeMatrixComputer.setDestinations(toIds, toLats, toLons);
+            travelTimeMatrixComputer.setModes(directModes, accessModes, transitModes, egressModes);
+            travelTimeMatrixComputer.setDepartureDateTime(serviceClass.get(0), departureTime);
+            travelTimeMatrixComputer.setTripDuration(maxWalkTime, maxBikeTime, maxCarTime, maxTripDuration);
+
+            RDataFrame classResults = travelTimeMatrixComputer.run();
+            classResults.addStringColumn("date", "");
+
+            for (String date : serviceClass) {
+                Collections.fill(classResults.get("date"), date);
+                out.appendFrame(classResults);
+            }
+        }
+
+        this.routingProperties.reset();
+        return out;
+    }
+
+    /**
+     * Travel time by departure minute for every reachable origin-destination pair. With frequency-based GTFS, the
+     * Monte Carlo draws of each minute are summarized by stat, "MIN" or "MEDIAN".
+     */
+    public DepartureProfileResult departureProfiles(String[] fromIds, double[] fromLats, double[] fromLons,
+                                                    String[] toIds, double[] toLats, double[] toLons, String stat,
+                                                    String directModes, String transitModes, String accessModes, String egressModes,
+                                                    String date, String departureTime,
+                                                    int maxWalkTime, int maxBikeTime, int maxCarTime, int maxTripDuration) throws ExecutionException, InterruptedException {
+
+        DepartureProfileComputer profileComputer = new DepartureProfileComputer(this.r5rThreadPool, this.routingProperties);
+        profileComputer.setOrigins(fromIds, fromLats, fromLons);
+        profileComputer.setDestinations(toIds, toLats, toLons);
+        profileComputer.setStat(stat);
+        profileComputer.setModes(directModes, accessModes, transitModes, egressModes);
+        profileComputer.setDepartureDateTime(date, departureTime);
+        profileComputer.setTripDuration(maxWalkTime, maxBikeTime, maxCarTime, maxTripDuration);
+
+        DepartureProfileResult out = profileComputer.run();
         this.routingProperties.reset();
         return out;
     }
@@ -518,28 +670,166 @@ public class R5RCore {
         return out;
     }
 
-    // Test decay functions used to calculate accessibility
-    public double[] testDecay(String decayFunctionName, double decayValue) {
-        DecayFunction decayFunction = null;
-        decayFunctionName = decayFunctionName.toUpperCase();
-        if (decayFunctionName.equals("STEP")) { decayFunction = new StepDecayFunction(); }
-        if (decayFunctionName.equals("EXPONENTIAL")) { decayFunction = new ExponentialDecayFunction(); }
-
-        if (decayFunctionName.equals("FIXED_EXPONENTIAL")) {
-            decayFunction = new FixedExponentialDecayFunction();
-            ((FixedExponentialDecayFunction) decayFunction).decayConstant = decayValue;
-        }
-        if (decayFunctionName.equals("LINEAR")) {
-            decayFunction = new LinearDecayFunction();
-            ((LinearDecayFunction) decayFunction).widthMinutes = (int) decayValue;
+    // accessibility for several decay functions, computed from the same travel times
+    public RDataFrame accessibility(String[] fromIds, double[] fromLats, double[] fromLons,
+                                    String[] toIds, double[] toLats, double[] toLons,
+                                    String[] opportunities, int[][] opportunityCounts,
+                                    String[] decayFunctions, double[] decayValues,
+                                    String directModes, String transitModes, String accessModes, String egressModes,
+                                    String date, String departureTime,
+                                    int maxWalkTime, int maxBikeTime, int maxCarTime, int maxTripDuration)
+            throws ExecutionException, InterruptedException {
+
+        AccessibilityEstimator accessibilityEstimator = new AccessibilityEstimator(this.r5rThreadPool, this.routingProperties);
+        accessibilityEstimator.setOrigins(fromIds, fromLats, fromLons);
+        accessibilityEstimator.setDestinations(toIds, toLats, toLons, opportunities, opportunityCounts);
+        accessibilityEstimator.setDecayFunctions(decayFunctions, decayValues);
+        accessibilityEstimator.setModes(directModes, accessModes, transitModes, egressModes);
+        accessibilityEstimator.setDepartureDateTime(date, departureTime);
+        accessibilityEstimator.setTripDuration(maxWalkTime, maxBikeTime, maxCarTime, maxTripDuration);
+
+        RDataFrame out = accessibilityEstimator.run();
+        routingProperties.reset();
+        return out;
+    }
+
+    /**
+     * Travel times aggregated by pairs of origin and destination zones, weighted by the given point weights.
+     */
+    public RDataFrame zonalTravelTimeMatrix(String[] fromIds, double[] fromLats, double[] fromLons,
+                                            String[] fromZones, double[] fromWeights,
+                                            String[] toIds, double[] toLats, double[] toLons,
+                                            String[] toZones, double[] toWeights,
+                                            String directModes, String transitModes, String accessModes, String egressModes,
+                                            String date, String departureTime,
+                                            int maxWalkTime, int maxBikeTime, int maxCarTime, int maxTripDuration)
+            throws ExecutionException, InterruptedException {
+
+        ZonalTravelTimeComputer zonalComputer = new ZonalTravelTimeComputer(this.r5rThreadPool, this.routingProperties);
+        zonalComputer.setOrigins(fromIds, fromLats, fromLons);
+        zonalComputer.setOriginZones(fromZones, fromWeights);
+        zonalComputer.setDestinations(toIds, toLats, toLons);
+        zonalComputer.setDestinationZones(toZones, toWeights);
+        zonalComputer.setModes(directModes, accessModes, transitModes, egressModes);
+        zonalComputer.setDepartureDateTime(date, departureTime);
+        zonalComputer.setTripDuration(maxWalkTime, maxBikeTime, maxCarTime, maxTripDuration);
+
+        RDataFrame out = zonalComputer.run();
+        routingProperties.reset();
+        return out;
+    }
+
+    /**
+     * The k destinations with the shortest travel times from each origin, ranked by the first percentile.
+     */
+    public RDataFrame nearestDestinations(String[] fromIds, double[] fromLats, double[] fromLons,
+                                          String[] toIds, double[] toLats, double[] toLons, int k,
+                                          String directModes, String transitModes, String accessModes, String egressModes,
+                                          String date, String departureTime,
+                                          int maxWalkTime, int maxBikeTime, int maxCarTime, int maxTripDuration)
+            throws ExecutionException, InterruptedException {
+
+        NearestDestinationsComputer nearestComputer = new NearestDestinationsComputer(this.r5rThreadPool, this.routingProperties);
+        nearestComputer.setOrigins(fromIds, fromLats, fromLons);
+        nearestComputer.setDestinations(toIds, toLats, toLons);
+        nearestComputer.setK(k);
+        nearestComputer.setModes(directModes, accessModes, transitModes, egressModes);
+        nearestComputer.setDepartureDateTime(date, departureTime);
+        nearestComputer.setTripDuration(maxWalkTime, maxBikeTime, maxCarTime, maxTripDuration);
+
+        RDataFrame out = nearestComputer.run();
+        routingProperties.reset();
+        return out;
+    }
+
+    /**
+     * Opportunities reached from each origin by minute of travel time, as a histogram or as a cumulative curve.
+     */
+    public RDataFrame travelTimeHistogram(String[] fromIds, double[] fromLats, double[] fromLons,
+                                          String[] toIds, double[] toLats, double[] toLons,
+                                          String[] opportunities, int[][] opportunityCounts, boolean cumulative,
+                                          String directModes, String transitModes, String accessModes, String egressModes,
+                                          String date, String departureTime,
+                                          int maxWalkTime, int maxBikeTime, int maxCarTime, int maxTripDuration)
+            throws ExecutionException, InterruptedException {
+
+        TravelTimeHistogramComputer histogramComputer = new TravelTimeHistogramComputer(this.r5rThreadPool, this.routingProperties);
+        histogramComputer.setOrigins(fromIds, fromLats, fromLons);
+        histogramComputer.setDestinations(toIds, toLats, toLons, opportunities, opportunityCounts);
+        histogramComputer.setCumulative(cumulative);
+        histogramComputer.setModes(directModes, accessModes, transitModes, egressModes);
+        histogramComputer.setDepartureDateTime(date, departureTime);
+        histogramComputer.setTripDuration(maxWalkTime, maxBikeTime, maxCarTime, maxTripDuration);
+
+        RDataFrame out = histogramComputer.run();
+        routingProperties.reset();
+        return out;
+    }
+
+    /**
+     * Competitive accessibility with the two-step floating catchment area method. Origins are demand points with the
+     * given population, destinations hold the opportunities (supply). Cutoffs come from setCutoffs().
+     */
+    public RDataFrame floatingCatchmentAccessibility(String[] fromIds, double[] fromLats, double[] fromLons, double[] population,
+                                                    String[] toIds, double[] toLats, double[] toLons,
+                                                    String[] opportunities, double[][] opportunityWeights,
+                                                    String decayFunction, double decayValue,
+                                                    String directModes, String transitModes, String accessModes, String egressModes,
+                                                    String date, String departureTime,
+                                                    int maxWalkTime, int maxBikeTime, int maxCarTime, int maxTripDuration)
+            throws ExecutionException, InterruptedException {
+
+        FloatingCatchmentEstimator floatingCatchmentEstimator = new FloatingCatchmentEstimator(this.r5rThreadPool, this.routingProperties);
+        floatingCatchmentEstimator.setOrigins(fromIds, fromLats, fromLons);
+        floatingCatchmentEstimator.setPopulation(population);
+        floatingCatchmentEstimator.setDestinations(toIds, toLats, toLons, opportunities, opportunityWeights);
+        floatingCatchmentEstimator.setDecayFunction(decayFunction, decayValue);
+        floatingCatchmentEstimator.setModes(directModes, accessModes, transitModes, egressModes);
+        floatingCatchmentEstimator.setDepartureDateTime(date, departureTime);
+        floatingCatchmentEstimator.setTripDuration(maxWalkTime, maxBikeTime, maxCarTime, maxTripDuration);
+
+        RDataFrame out = floatingCatchmentEstimator.run();
+        routingProperties.reset();
+        return out;
+    }
+
+    /**
+     * Accessibility from the travel times cached by the last travel time matrix, without routing. Opportunity counts
+     * must be given for the destinations of that matrix, in the same order. Cutoffs come from setCutoffs() and
+     * should not exceed the max trip duration of the cached matrix; percentiles are those of the cached matrix.
+     */
+    public RDataFrame accessibilityFromCache(String[] opportunities, int[][] opportunityCounts,
+                                             String[] decayFunctions, double[] decayValues)
+            throws ExecutionException, InterruptedException {
+        if (travelTimeCache == null) {
+            throw new IllegalStateException("No cached travel times. Enable caching with setTravelTimeCaching(true) " +
+                    "and compute a travel time matrix first.");
         }
-        if (decayFunctionName.equals("LOGISTIC")) {
-            decayFunction = new LogisticDecayFunction();
-            ((LogisticDecayFunction) decayFunction).standardDeviationMinutes = decayValue;
+        for (int[] counts : opportunityCounts) {
+            if (counts.length != travelTimeCache.nDestinations()) {
+                throw new IllegalArgumentException("Opportunity counts must match the destinations of the cached travel time matrix.");
+            }
         }
 
+        routingProperties.percentiles = travelTimeCache.percentiles;
+
+        AccessibilityEstimator accessibilityEstimator = new AccessibilityEstimator(this.r5rThreadPool, this.routingProperties);
+        accessibilityEstimator.setTravelTimeCache(travelTimeCache);
+        accessibilityEstimator.setOrigins(travelTimeCache.fromIds, travelTimeCache.fromLats, travelTimeCache.fromLons);
+        accessibilityEstimator.setDestinations(travelTimeCache.toIds, travelTimeCache.toLats, travelTimeCache.toLons,
+                opportunities, opportunityCounts);
+        accessibilityEstimator.setDecayFunctions(decayFunctions, decayValues);
+
+        RDataFrame out = accessibilityEstimator.run();
+        routingProperties.reset();
+        return out;
+    }
+
+    // Test decay functions used to calculate accessibility
+    public double[] testDecay(String decayFunctionName, double decayValue) {
+        DecayFunction decayFunction = AccessibilityEstimator.buildDecayFunction(decayFunctionName, decayValue);
+
         if (decayFunction != null) {
-            decayFunction.prepare();
             double[] decay = new double [3600];
             for (int i = 0; i < 3600; i++) {
                 decay[i] = decayFunction.computeWeight(1800, i+1);
@@ -200,6 +200,38 @@ public class RDataFrame {
         return (Boolean) data.get(currentRow);
     }
 
+    /**
+     * Appends all rows of another data frame to this one. Columns that only exist in the other data frame are
+     * added to this one, with this data frame's existing rows set to the other's default value. Columns that only
+     * exist in this data frame are filled with their default value.
+     */
+    public void appendFrame(RDataFrame other) {
+        for (int i = 0; i < other.columnNames.size(); i++) {
+            String columnName = other.columnNames.get(i);
+            if (dataFrame.containsKey(columnName)) continue;
+
+            ArrayList<Object> column = new ArrayList<>(capacity);
+            Object defaultValue = other.defaultValues.get(columnName);
+            for (int r = 0; r < rowCount; r++) { column.add(defaultValue); }
+            dataFrame.put(columnName, column);
+
+            defaultValues.put(columnName, defaultValue);
+
+            columnNames.add(columnName);
+            columnTypes.add(other.columnTypes.get(i));
+        }
+
+        dataFrame.forEach((columnName, columnContents) -> {
+            ArrayList<Object> otherContents = other.dataFrame.get(columnName);
+            if (otherContents != null) {
+                columnContents.addAll(otherContents);
+            } else {
+                columnContents.addAll(Collections.nCopies(other.rowCount, defaultValues.get(columnName)));
+            }
+        });
+        rowCount += other.rowCount;
+    }
+
     public void clear() {
         columnNames.forEach(key -> {
             ArrayList<Object> column = dataFrame.get(key);
@@ -23,6 +23,8 @@ public class RoutingProperties {
     public static final int DEFAULT_SUBOPTIMAL_MINUTES = 0;
     public static final int DEFAULT_TIME_WINDOW_SIZE = 10;
     public static final int DEFAULT_NUMBER_OF_MONTE_CARLO_DRAWS = 50;
+    public static final int DEFAULT_ADAPTIVE_DRAWS_PER_BATCH = 1;
+    public static final double DEFAULT_ADAPTIVE_TOLERANCE = 0.0;
     public static final float DEFAULT_MAX_FARE = -1.0f;
     public static final int[] DEFAULT_PERCENTILES = {50};
     public static final int[] DEFAULT_CUTOFFS = {30};
@@ -34,10 +36,14 @@ public class RoutingProperties {
     public int suboptimalMinutes = DEFAULT_SUBOPTIMAL_MINUTES; // Suboptimal minutes in point-to-point queries
     public int timeWindowSize = DEFAULT_TIME_WINDOW_SIZE; // minutes
     public int numberOfMonteCarloDraws = DEFAULT_NUMBER_OF_MONTE_CARLO_DRAWS; //
+    public int adaptiveDrawsPerBatch = DEFAULT_ADAPTIVE_DRAWS_PER_BATCH; // draws per departure minute in each batch
+    public double adaptiveTolerance = DEFAULT_ADAPTIVE_TOLERANCE; // minutes; adaptive Monte Carlo is off when <= 0
     public int[] percentiles = DEFAULT_PERCENTILES;
     public int[] cutoffs = DEFAULT_CUTOFFS;
     public boolean travelTimesBreakdown = false;
     public boolean expandedTravelTimes = false;
+    public boolean exactTravelTimes = false; // schedule-based networks only: one iteration per minute, no Monte Carlo draws
+    public boolean travelTimesByRides = false; // adds travel times using at most 0..maxRides rides to travel time matrices
     public PathResult.Stat travelTimesBreakdownStat = PathResult.Stat.MEAN;
 
     public float maxFare = DEFAULT_MAX_FARE;
@@ -80,10 +86,14 @@ public class RoutingProperties {
         suboptimalMinutes = DEFAULT_SUBOPTIMAL_MINUTES;
         timeWindowSize = DEFAULT_TIME_WINDOW_SIZE;
         numberOfMonteCarloDraws = DEFAULT_NUMBER_OF_MONTE_CARLO_DRAWS;
+        adaptiveDrawsPerBatch = DEFAULT_ADAPTIVE_DRAWS_PER_BATCH;
+        adaptiveTolerance = DEFAULT_ADAPTIVE_TOLERANCE;
 
         travelTimesBreakdown = false;
         travelTimesBreakdownStat = PathResult.Stat.MEAN;
         expandedTravelTimes = false;
+        exactTravelTimes = false;
+        travelTimesByRides = false;
 
         percentiles = DEFAULT_PERCENTILES;
         cutoffs = DEFAULT_CUTOFFS;
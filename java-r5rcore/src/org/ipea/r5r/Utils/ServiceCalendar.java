@@ -0,0 +1,32 @@
+package org.ipea.r5r.Utils;
+
+import com.conveyal.r5.transit.TransitLayer;
+
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * Groups departure dates by the set of GTFS services that are active on them. Two dates with the same set of
+ * active services produce exactly the same routing results, because R5 only uses the date to decide which trips
+ * are running. Routing can therefore be done once per group and the results reused for every date in it.
+ */
+public class ServiceCalendar {
+
+    /**
+     * Returns the dates grouped by their active services, in the order in which each group first appears in the
+     * input. Dates within each group keep their input order, and repeated dates are only kept once.
+     */
+    public static LinkedHashMap<BitSet, List<String>> groupDatesByActiveServices(TransitLayer transitLayer, String[] dates) {
+        LinkedHashMap<BitSet, List<String>> serviceClasses = new LinkedHashMap<>();
+        Set<String> seenDates = new HashSet<>();
+
+        for (String date : dates) {
+            if (!seenDates.add(date)) continue;
+
+            BitSet activeServices = transitLayer.getActiveServicesForDate(LocalDate.parse(date));
+            serviceClasses.computeIfAbsent(activeServices, k -> new ArrayList<>()).add(date);
+        }
+
+        return serviceClasses;
+    }
+}
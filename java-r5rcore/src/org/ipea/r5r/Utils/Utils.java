@@ -76,6 +76,17 @@ public class Utils {
         return (strHours + ":" + strMin + ":" + strSec);
     }
 
+    /**
+     * Converts a travel time in seconds to whole minutes the same way R5's TravelTimeReducer does: minutes are
+     * truncated, and travel times that reach the maximum trip duration are reported as unreachable.
+     */
+    public static int getTravelTimeMinutes(int travelTimeSeconds, int maxTripDurationMinutes) {
+        if (travelTimeSeconds == Integer.MAX_VALUE) return Integer.MAX_VALUE;
+
+        int travelTimeMinutes = travelTimeSeconds / 60;
+        return travelTimeMinutes < maxTripDurationMinutes ? travelTimeMinutes : Integer.MAX_VALUE;
+    }
+
     public static void setlogProgress(boolean progress){
         Utils.progress = progress;
 